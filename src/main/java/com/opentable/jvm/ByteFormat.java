@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+
+/**
+ * Human-readable byte counts ("1.50 KiB"), appended straight to the output without allocating: no
+ * {@link Math#log(double)}, no {@link String#format(String, Object...)} and no intermediate strings.
+ * Output matches what {@code String.format("%.2f %ciB", ...)} produces.
+ * @see Memory#formatBytes(long)
+ */
+final class ByteFormat {
+    private static final String UNITS = "KMGTPE";
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L,
+        10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+        1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L,
+    };
+    private static final String MIN_VALUE = "-9223372036854775808";
+
+    /**
+     * Bits of the remainder kept when computing hundredths, so the arithmetic can't overflow.
+     */
+    private static final int FRACTION_BITS = 56;
+
+    private ByteFormat() {}
+
+    /**
+     * @param out Where to append.
+     * @param bytes Byte count.
+     * @throws IOException if {@code out} does.
+     */
+    static void append(final Appendable out, final long bytes) throws IOException {
+        if (bytes < 1024) {
+            appendLong(out, bytes);
+            out.append(" B");
+            return;
+        }
+        final int exp = exponent(bytes);
+        final long hundredths = hundredths(bytes, exp);
+        appendLong(out, hundredths / 100);
+        out.append('.');
+        if (hundredths % 100 < 10) {
+            out.append('0');
+        }
+        appendLong(out, hundredths % 100);
+        out.append(' ').append(UNITS.charAt(exp - 1)).append("iB");
+    }
+
+    /**
+     * Like {@link #append(Appendable, long)}, for the common case that can't throw.
+     * @param sb Where to append.
+     * @param bytes Byte count.
+     */
+    static void append(final StringBuilder sb, final long bytes) {
+        try {
+            append((Appendable) sb, bytes);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+    }
+
+    /**
+     * @param bytes Byte count.
+     * @return Length of what {@link #append(Appendable, long)} would append; for aligning columns.
+     */
+    static int length(final long bytes) {
+        if (bytes < 1024) {
+            return digits(bytes) + 2;
+        }
+        // whole, '.', two digits, ' ', unit, "iB"
+        return digits(hundredths(bytes, exponent(bytes)) / 100) + 7;
+    }
+
+    /**
+     * Appends a decimal number without going through {@link Long#toString(long)}.
+     * @param out Where to append.
+     * @param n The number.
+     * @throws IOException if {@code out} does.
+     */
+    static void appendLong(final Appendable out, final long n) throws IOException {
+        if (n == Long.MIN_VALUE) {
+            out.append(MIN_VALUE);
+            return;
+        }
+        long v = n;
+        if (v < 0) {
+            out.append('-');
+            v = -v;
+        }
+        for (int i = digits(v) - 1; i >= 0; i--) {
+            final long p = POWERS_OF_TEN[i];
+            out.append((char) ('0' + v / p));
+            v %= p;
+        }
+    }
+
+    /**
+     * @return Number of characters in the decimal representation, including any minus sign.
+     */
+    static int digits(final long n) {
+        if (n == Long.MIN_VALUE) {
+            return MIN_VALUE.length();
+        }
+        final long v = Math.abs(n);
+        int ret = 1;
+        while (ret < POWERS_OF_TEN.length && v >= POWERS_OF_TEN[ret]) {
+            ++ret;
+        }
+        return n < 0 ? ret + 1 : ret;
+    }
+
+    /**
+     * @return The power of 1024 for the unit; 1 for KiB, up to 6 for EiB.
+     */
+    private static int exponent(final long bytes) {
+        return (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+    }
+
+    /**
+     * @return The value in hundredths of a unit, rounded half up.
+     */
+    private static long hundredths(final long bytes, final int exp) {
+        final int shift = exp * 10;
+        final long whole = bytes >>> shift;
+        long rem = bytes & ((1L << shift) - 1);
+        int bits = shift;
+        if (bits > FRACTION_BITS) {
+            rem >>>= bits - FRACTION_BITS;
+            bits = FRACTION_BITS;
+        }
+        // Can't overflow: whole is at most 2^53.
+        return whole * 100 + ((rem * 100 + (1L << (bits - 1))) >>> bits);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the JIT: code cache segments ({@code Compiler.codecache}), the compile queue ({@code Compiler.queue}), the
+ * code heap memory pools and total compilation time.
+ *
+ * <p>
+ * The point is to notice the code cache filling up <em>before</em> it does: once it's full the JVM stops compiling
+ * ({@link CodeCache#compilationEnabled} goes false) and throughput collapses, with nothing but a single warning in
+ * stdout to show for it.
+ *
+ * <p>
+ * Keeps the previous sample to compute rates, so use one instance per poller.  Thread-safe.
+ */
+public class CompilerMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(CompilerMonitor.class);
+    private static final long K = 1024;
+
+    private final CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+    private long lastCompileMillis = -1;
+    private long lastNanos;
+
+    /**
+     * Runs {@code Compiler.codecache} and {@code Compiler.queue}, and reads the code heap pools and compilation time.
+     * Logs a warning if there was an error running or parsing either command.
+     * @return null if there was an error getting the code cache.
+     */
+    @Nullable
+    public synchronized Report sample() {
+        final String codecache = Dcmd.invoke("compilerCodecache");
+        if (codecache == null) {
+            return null;
+        }
+        final CodeCache cache;
+        try {
+            cache = parseCodecache(codecache);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("un-parseable code cache:\n{}", codecache, e);
+            return null;
+        }
+        Queue queue = null;
+        final String queueStr = Dcmd.invoke("compilerQueue");
+        if (queueStr != null) {
+            queue = parseQueue(queueStr);
+        }
+
+        final List<MemorySnapshot.Pool> pools = new ArrayList<>();
+        for (final MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+            final String name = bean.getName();
+            if (bean.isValid() && (name.startsWith("CodeHeap") || "Code Cache".equals(name))) {
+                final MemoryUsage usage = bean.getUsage();
+                pools.add(new MemorySnapshot.Pool(name, false, usage));
+            }
+        }
+
+        final long now = System.nanoTime();
+        long compileMillis = -1;
+        double rate = -1;
+        if (compilation != null && compilation.isCompilationTimeMonitoringSupported()) {
+            compileMillis = compilation.getTotalCompilationTime();
+            if (lastCompileMillis != -1 && now > lastNanos) {
+                rate = (double) TimeUnit.MILLISECONDS.toNanos(compileMillis - lastCompileMillis) / (now - lastNanos);
+            }
+            lastCompileMillis = compileMillis;
+            lastNanos = now;
+        }
+        return new Report(cache, queue, Collections.unmodifiableList(pools), compileMillis, rate);
+    }
+
+    /**
+     * @param s {@code Compiler.codecache} output to parse.
+     * @return Filled-out {@link CodeCache} instance.
+     * @throws IllegalArgumentException with human-readable error if string couldn't be parsed.
+     */
+    @VisibleForTesting
+    static CodeCache parseCodecache(@Nonnull final String s) {
+        final List<Segment> segments = new ArrayList<>();
+        Boolean enabled = null;
+        long fullCount = -1;
+        long nmethods = -1;
+        for (final String line : s.split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.startsWith("CodeHeap '") || trimmed.startsWith("CodeCache:")) {
+                final String name;
+                if (trimmed.startsWith("CodeHeap '")) {
+                    final int end = trimmed.indexOf('\'', "CodeHeap '".length());
+                    if (end == -1) {
+                        throw new IllegalArgumentException(String.format("unterminated name in %s", trimmed));
+                    }
+                    name = trimmed.substring("CodeHeap '".length(), end);
+                } else {
+                    name = "CodeCache";
+                }
+                segments.add(new Segment(name, kb(trimmed, "size="), kb(trimmed, "used="), kb(trimmed, "max_used="),
+                        kb(trimmed, "free=")));
+            } else if (trimmed.startsWith("compilation:")) {
+                enabled = trimmed.substring("compilation:".length()).trim().startsWith("enabled");
+            } else if (trimmed.startsWith("full_count=")) {
+                fullCount = value(trimmed, "full_count=");
+            } else if (trimmed.startsWith("total_blobs=")) {
+                nmethods = value(trimmed, "nmethods=");
+            }
+        }
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException("no code heap segments parsed");
+        }
+        if (enabled == null) {
+            throw new IllegalArgumentException("could not find compilation state");
+        }
+        return new CodeCache(Collections.unmodifiableList(segments), enabled, fullCount, nmethods);
+    }
+
+    /**
+     * @param s {@code Compiler.queue} output to parse.
+     * @return Filled-out {@link Queue} instance.
+     */
+    @VisibleForTesting
+    static Queue parseQueue(@Nonnull final String s) {
+        int active = 0;
+        int queued = 0;
+        // 0: preamble; 1: current compiles; 2: a compile queue
+        int section = 0;
+        for (final String line : s.split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.startsWith("Current compiles")) {
+                section = 1;
+            } else if (trimmed.endsWith("compile queue:")) {
+                section = 2;
+            } else if (!"Empty".equals(trimmed)) {
+                if (section == 1) {
+                    ++active;
+                } else if (section == 2) {
+                    ++queued;
+                }
+            }
+        }
+        return new Queue(active, queued);
+    }
+
+    private static long kb(final String line, final String label) {
+        final long v = value(line, label);
+        return v == -1 ? -1 : v * K;
+    }
+
+    /**
+     * @return The number following the label.  -1 if the label is not present.
+     */
+    private static long value(final String line, final String label) {
+        int i = line.indexOf(label);
+        // Don't let "used=" match inside "max_used=".
+        while (i > 0 && (Character.isLetter(line.charAt(i - 1)) || line.charAt(i - 1) == '_')) {
+            i = line.indexOf(label, i + 1);
+        }
+        if (i == -1) {
+            return -1;
+        }
+        final int start = i + label.length();
+        int end = start;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+            ++end;
+        }
+        if (end == start) {
+            throw new IllegalArgumentException(String.format("no number after %s in %s", label, line));
+        }
+        return Long.parseLong(line.substring(start, end));
+    }
+
+    /**
+     * One code heap segment; the whole code cache if {@code -XX:-SegmentedCodeCache}.  Byte fields are in bytes.
+     */
+    public static class Segment {
+        /** E.g. "non-profiled nmethods", or "CodeCache" if the code cache isn't segmented. */
+        public final String name;
+        public final long size;
+        public final long used;
+        /** High-water mark of {@link #used}. */
+        public final long maxUsed;
+        public final long free;
+
+        Segment(final String name, final long size, final long used, final long maxUsed, final long free) {
+            this.name = name;
+            this.size = size;
+            this.used = used;
+            this.maxUsed = maxUsed;
+            this.free = free;
+        }
+
+        /**
+         * Space below the high-water mark that has been freed by flushing methods.  It can only be reused by code
+         * blobs that fit in the holes left behind, so a large value relative to {@link #used} indicates
+         * fragmentation.  An approximation: the exact free-block layout needs {@code Compiler.CodeHeap_Analytics},
+         * which holds the code cache lock for far too long to poll.
+         * @return Bytes.
+         */
+        public long fragmentedBytes() {
+            return Math.max(0, maxUsed - used);
+        }
+
+        /**
+         * @return Fraction of the segment in use, 0 to 1.
+         */
+        public double utilization() {
+            return size <= 0 ? 0 : (double) used / size;
+        }
+    }
+
+    /**
+     * Parsed {@code Compiler.codecache}.
+     */
+    public static class CodeCache {
+        public final List<Segment> segments;
+        /** false once the JIT has shut itself off, typically because the code cache filled up. */
+        public final boolean compilationEnabled;
+        /** Times the code cache has become full; -1 if not reported. */
+        public final long fullCount;
+        /** Compiled methods in the code cache; -1 if not reported. */
+        public final long nmethods;
+
+        CodeCache(final List<Segment> segments, final boolean compilationEnabled, final long fullCount,
+                final long nmethods) {
+            this.segments = segments;
+            this.compilationEnabled = compilationEnabled;
+            this.fullCount = fullCount;
+            this.nmethods = nmethods;
+        }
+    }
+
+    /**
+     * Parsed {@code Compiler.queue}.
+     */
+    public static class Queue {
+        /** Compilations in progress. */
+        public final int active;
+        /** Methods waiting to be compiled, over all compilers. */
+        public final int queued;
+
+        Queue(final int active, final int queued) {
+            this.active = active;
+            this.queued = queued;
+        }
+    }
+
+    /**
+     * Result of {@link #sample()}.
+     */
+    public static class Report {
+        public final CodeCache codeCache;
+        /** null if the queue could not be read. */
+        @Nullable
+        public final Queue queue;
+        /** The code heap memory pools. */
+        public final List<MemorySnapshot.Pool> pools;
+        /** Total time spent compiling since JVM start; -1 if not supported. */
+        public final long totalCompileMillis;
+        /**
+         * Milliseconds spent compiling per millisecond since the previous sample (across all compiler threads, so can
+         * exceed 1).  -1 for the first sample, or if not supported.
+         */
+        public final double compileTimeRate;
+
+        Report(final CodeCache codeCache, @Nullable final Queue queue, final List<MemorySnapshot.Pool> pools,
+                final long totalCompileMillis, final double compileTimeRate) {
+            this.codeCache = codeCache;
+            this.queue = queue;
+            this.pools = pools;
+            this.totalCompileMillis = totalCompileMillis;
+            this.compileTimeRate = compileTimeRate;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory usage and limit of the cgroup (v1 or v2) this process runs in; i.e., the numbers the kernel's OOM killer
+ * goes by when it kills a container.
+ *
+ * <p>
+ * Byte fields are -1 if not available; {@link #limit} is also -1 if there is no limit.
+ * @see Tracker
+ */
+public class ContainerMemory {
+    private static final Logger LOG = LoggerFactory.getLogger(ContainerMemory.class);
+    private static final Path DEFAULT_ROOT = Paths.get("/sys/fs/cgroup");
+    private static final Path PROC_SELF_CGROUP = Paths.get("/proc/self/cgroup");
+
+    /**
+     * cgroup v1 reports "no limit" as a huge page-aligned number rather than "max".
+     */
+    private static final long V1_UNLIMITED = Long.MAX_VALUE / 2;
+
+    /**
+     * We warn only once to avoid cluttering the logs, e.g., when not running in a container.
+     */
+    private static boolean MISSING_DID_WARN = false;
+
+    /** 1 or 2. */
+    public final int version;
+    /** Limit beyond which the OOM killer steps in.  -1 if unlimited. */
+    public final long limit;
+    /** All memory charged to the cgroup, including page cache. */
+    public final long usage;
+    /** Anonymous memory. */
+    public final long anon;
+    /** Page cache. */
+    public final long file;
+    /** Page cache that the kernel will reclaim before resorting to the OOM killer. */
+    public final long inactiveFile;
+    /** Times the cgroup hit its limit. */
+    public final long limitHits;
+    /** Processes in the cgroup killed by the OOM killer.  Not reported by older v1 kernels. */
+    public final long oomKills;
+
+    @SuppressWarnings("PMD.ExcessiveParameterList")
+    private ContainerMemory(final int version, final long limit, final long usage, final long anon, final long file,
+            final long inactiveFile, final long limitHits, final long oomKills) {
+        this.version = version;
+        this.limit = limit;
+        this.usage = usage;
+        this.anon = anon;
+        this.file = file;
+        this.inactiveFile = inactiveFile;
+        this.limitHits = limitHits;
+        this.oomKills = oomKills;
+    }
+
+    /**
+     * Logs a warning if there was an error reading the cgroup.
+     * This warning will be logged only once per process instance if there is no cgroup memory controller.
+     * @return Memory of the cgroup this process belongs to.  null if it could not be read.
+     */
+    @Nullable
+    public static ContainerMemory get() {
+        return get(DEFAULT_ROOT);
+    }
+
+    /**
+     * Like {@link #get()}.
+     * @param root Where the cgroup filesystem is mounted; normally {@code /sys/fs/cgroup}.
+     * @return Memory of the cgroup this process belongs to.  null if it could not be read.
+     */
+    @Nullable
+    public static ContainerMemory get(@Nonnull final Path root) {
+        String self = null;
+        try {
+            self = new String(Files.readAllBytes(PROC_SELF_CGROUP), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOG.debug("could not read {}; assuming cgroup namespace", PROC_SELF_CGROUP, e);
+        }
+        return get(root, self);
+    }
+
+    /**
+     * @param root Where the cgroup filesystem is mounted.
+     * @param selfCgroup Contents of {@code /proc/self/cgroup}.  null to use the cgroup at the root, as is the case
+     * inside a container with its own cgroup namespace.
+     * @return null if the cgroup could not be read.
+     */
+    @VisibleForTesting
+    @Nullable
+    static ContainerMemory get(@Nonnull final Path root, @Nullable final String selfCgroup) {
+        try {
+            final Path v1 = root.resolve("memory");
+            if (Files.isRegularFile(root.resolve("cgroup.controllers"))) {
+                return readV2(root, locate(root, selfCgroup, ""));
+            }
+            if (Files.isDirectory(v1)) {
+                return readV1(locate(v1, selfCgroup, "memory"));
+            }
+            if (!MISSING_DID_WARN) {
+                LOG.warn("no cgroup memory controller found under {}", root);
+                MISSING_DID_WARN = true;
+            }
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("error reading cgroup memory under {}", root, e);
+            return null;
+        }
+    }
+
+    /**
+     * Memory available before the OOM killer steps in.  Reclaimable page cache is counted as available.
+     * @return Bytes.  -1 if there is no limit.
+     */
+    public long headroom() {
+        if (limit == -1) {
+            return -1;
+        }
+        return limit - workingSet();
+    }
+
+    /**
+     * Usage less reclaimable page cache, like the "working set" Kubernetes reports.
+     * @return Bytes.
+     */
+    public long workingSet() {
+        return usage - Math.max(inactiveFile, 0);
+    }
+
+    /**
+     * @param controllers Controller(s) field to look for in {@code /proc/self/cgroup}; empty string for v2.
+     */
+    private static Path locate(final Path mount, @Nullable final String selfCgroup, final String controllers) {
+        if (selfCgroup == null) {
+            return mount;
+        }
+        for (final String line : selfCgroup.split("\n")) {
+            final int first = line.indexOf(':');
+            final int second = line.indexOf(':', first + 1);
+            if (first == -1 || second == -1) {
+                continue;
+            }
+            final String field = line.substring(first + 1, second);
+            final boolean match = controllers.isEmpty()
+                    ? field.isEmpty()
+                    : ("," + field + ",").contains("," + controllers + ",");
+            if (!match) {
+                continue;
+            }
+            final String rel = line.substring(second + 1).trim();
+            final Path candidate = mount.resolve(rel.startsWith("/") ? rel.substring(1) : rel);
+            // Without a cgroup namespace, our group is nested; with one, it's mounted at the root.
+            if (Files.isDirectory(candidate)) {
+                return candidate;
+            }
+        }
+        return mount;
+    }
+
+    private static ContainerMemory readV2(final Path mount, final Path dir) throws IOException {
+        final String stat = read(dir.resolve("memory.stat"));
+        final String events = readOptional(dir.resolve("memory.events"));
+        return new ContainerMemory(
+                2,
+                limitV2(mount, dir),
+                parseLong(read(dir.resolve("memory.current"))),
+                statValue(stat, "anon"),
+                statValue(stat, "file"),
+                statValue(stat, "inactive_file"),
+                statValue(events, "max"),
+                statValue(events, "oom_kill"));
+    }
+
+    /**
+     * A limit set on an ancestor, e.g. a Kubernetes pod or systemd slice, also applies to our group, whose own
+     * {@code memory.max} then reads "max"; so take the smallest limit from our group up to the mount.
+     * @return Bytes.  -1 if unlimited.
+     */
+    private static long limitV2(final Path mount, final Path dir) throws IOException {
+        long limit = -1;
+        for (Path d = dir; d != null && d.startsWith(mount); d = d.getParent()) {
+            final String max = readOptional(d.resolve("memory.max"));
+            if (max != null && !"max".equals(max.trim())) {
+                final long l = parseLong(max);
+                limit = limit == -1 ? l : Math.min(limit, l);
+            }
+        }
+        return limit;
+    }
+
+    private static ContainerMemory readV1(final Path dir) throws IOException {
+        final String stat = read(dir.resolve("memory.stat"));
+        long limit = parseLong(read(dir.resolve("memory.limit_in_bytes")));
+        // Takes ancestors' limits into account.
+        final long hierarchical = statValue(stat, "hierarchical_memory_limit");
+        if (hierarchical != -1) {
+            limit = Math.min(limit, hierarchical);
+        }
+        final String failcnt = readOptional(dir.resolve("memory.failcnt"));
+        return new ContainerMemory(
+                1,
+                limit >= V1_UNLIMITED ? -1 : limit,
+                parseLong(read(dir.resolve("memory.usage_in_bytes"))),
+                statValue(stat, "total_rss"),
+                statValue(stat, "total_cache"),
+                statValue(stat, "total_inactive_file"),
+                failcnt == null ? -1 : parseLong(failcnt),
+                statValue(readOptional(dir.resolve("memory.oom_control")), "oom_kill"));
+    }
+
+    /**
+     * @param s Contents of a flat keyed file, such as {@code memory.stat}, with lines of the form "{@code key value}".
+     * @return The value.  -1 if there is no such key.
+     */
+    @VisibleForTesting
+    static long statValue(@Nullable final String s, final String key) {
+        if (s == null) {
+            return -1;
+        }
+        int line = 0;
+        while (line < s.length()) {
+            int eol = s.indexOf('\n', line);
+            if (eol == -1) {
+                eol = s.length();
+            }
+            final int space = line + key.length();
+            if (space < eol && s.charAt(space) == ' ' && s.startsWith(key, line)) {
+                return parseLong(s.substring(space + 1, eol));
+            }
+            line = eol + 1;
+        }
+        return -1;
+    }
+
+    private static long parseLong(final String s) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("could not parse %s", s), e);
+        }
+    }
+
+    private static String read(final Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+    }
+
+    @Nullable
+    private static String readOptional(final Path path) throws IOException {
+        try {
+            return read(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Combined view of container, NMT and heap memory at one point in time.
+     * Byte fields are -1 if not available.
+     * @see Tracker#sample(Nmt)
+     */
+    public static class Headroom {
+        public final ContainerMemory container;
+        /** NMT committed total; -1 if NMT was not available. */
+        public final long nmtCommitted;
+        public final long heapUsed;
+        public final long heapCommitted;
+        /** Growth of the container's working set over the tracker's window, in bytes per second. */
+        public final double growthPerSecond;
+        /**
+         * Estimated time until the working set hits the limit at {@link #growthPerSecond}.
+         * null if there is no limit or usage is not growing.
+         */
+        @Nullable
+        public final Duration timeToLimit;
+
+        Headroom(final ContainerMemory container, final long nmtCommitted, final long heapUsed,
+                final long heapCommitted, final double growthPerSecond) {
+            this.container = container;
+            this.nmtCommitted = nmtCommitted;
+            this.heapUsed = heapUsed;
+            this.heapCommitted = heapCommitted;
+            this.growthPerSecond = growthPerSecond;
+            final long headroom = container.headroom();
+            if (headroom == -1 || growthPerSecond <= 0) {
+                this.timeToLimit = null;
+            } else {
+                this.timeToLimit = Duration.ofSeconds((long) Math.max(0, headroom / growthPerSecond));
+            }
+        }
+
+        /**
+         * @return Human-readable one-line summary.
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("container working set ")
+                    .append(Memory.formatBytes(container.workingSet()));
+            if (container.limit == -1) {
+                sb.append(" (no limit)");
+            } else {
+                sb.append(" of limit ").append(Memory.formatBytes(container.limit))
+                        .append(", headroom ").append(Memory.formatBytes(Math.max(container.headroom(), 0)));
+            }
+            if (nmtCommitted != -1) {
+                sb.append("; NMT committed ").append(Memory.formatBytes(nmtCommitted));
+            }
+            sb.append("; heap used ").append(Memory.formatBytes(heapUsed))
+                    .append(" of committed ").append(Memory.formatBytes(heapCommitted));
+            if (timeToLimit != null) {
+                sb.append("; limit reached in ~").append(timeToLimit);
+            }
+            if (container.oomKills > 0) {
+                sb.append("; OOM kills so far: ").append(container.oomKills);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Keeps recent working-set samples of the container to estimate its growth rate, and from that, the time left
+     * until the limit is hit.  Thread-safe.
+     */
+    public static class Tracker {
+        private final Path root;
+        private final GrowthWindow workingSet;
+
+        /**
+         * @param window How far back to look when estimating growth.
+         */
+        public Tracker(final Duration window) {
+            this(DEFAULT_ROOT, window);
+        }
+
+        /**
+         * @param root Where the cgroup filesystem is mounted.
+         * @param window How far back to look when estimating growth.
+         */
+        public Tracker(final Path root, final Duration window) {
+            this.root = root;
+            this.workingSet = new GrowthWindow(window.toNanos());
+        }
+
+        /**
+         * Reads the container's memory and the heap, and records a sample.
+         * @param nmt The latest NMT, if any, to include in the result.
+         * @return null if container memory could not be read.
+         */
+        @Nullable
+        public Headroom sample(@Nullable final Nmt nmt) {
+            final ContainerMemory container = ContainerMemory.get(root);
+            if (container == null) {
+                return null;
+            }
+            final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            return update(System.nanoTime(), container, nmt, heap.getUsed(), heap.getCommitted());
+        }
+
+        @VisibleForTesting
+        synchronized Headroom update(final long nowNanos, final ContainerMemory container, @Nullable final Nmt nmt,
+                final long heapUsed, final long heapCommitted) {
+            workingSet.add(nowNanos, container.workingSet());
+            return new Headroom(container, nmt == null ? -1 : nmt.total.committed, heapUsed, heapCommitted,
+                    workingSet.slopePerSecond());
+        }
+    }
+}
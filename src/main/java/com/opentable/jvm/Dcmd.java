@@ -24,13 +24,18 @@
 
 package com.opentable.jvm;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 
 import javax.annotation.Nullable;
 import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
 import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
@@ -53,20 +58,57 @@ class Dcmd {
      */
     @Nullable
     static String invoke(String cmd, String ...args) {
-        final ObjectName name;
-        try {
-            name = new ObjectName("com.sun.management", "type", "DiagnosticCommand");
-        } catch (MalformedObjectNameException e) {
-            throw new AssertionError("should never happen", e);
-        }
-        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        return invoke(ManagementFactory.getPlatformMBeanServer(), cmd, args);
+    }
+
+    /**
+     * Like {@link #invoke(String, String...)}, but in another JVM.
+     * Logs a warning and returns null if there was an error running the command.
+     * @param server Connection to the other JVM's MBean server; see {@link RemoteJvm}.
+     * @param cmd The command to execute.
+     * @param args Varargs: the command's arguments.
+     * @return The result of the command.  null if there was an error running the command.
+     */
+    @Nullable
+    static String invoke(MBeanServerConnection server, String cmd, String ...args) {
         final Object[] wrappedArgs = {args};
         final String[] signature = {String[].class.getName()};
         try {
-            return (String)server.invoke(name, cmd, wrappedArgs, signature);
-        } catch (InstanceNotFoundException | MBeanException | ReflectionException e) {
+            return (String)server.invoke(name(), cmd, wrappedArgs, signature);
+        } catch (InstanceNotFoundException | MBeanException | ReflectionException | IOException e) {
             LOG.warn("error invoking diagnostic command {} with args {}", cmd, Arrays.toString(args), e);
             return null;
         }
     }
+
+    /**
+     * Commands come and go between JDK versions; e.g., {@code System.trim_native_heap} first appeared in 17.0.9.
+     * Logs a warning and returns false if there was an error listing the commands.
+     * @param cmd The command, as passed to {@link #invoke(String, String...)}; e.g., {@code systemTrimNativeHeap}.
+     * @return Whether this JVM supports the command.
+     */
+    static boolean isSupported(String cmd) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final MBeanInfo info;
+        try {
+            info = server.getMBeanInfo(name());
+        } catch (InstanceNotFoundException | IntrospectionException | ReflectionException e) {
+            LOG.warn("error listing diagnostic commands", e);
+            return false;
+        }
+        for (final MBeanOperationInfo op : info.getOperations()) {
+            if (op.getName().equals(cmd)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ObjectName name() {
+        try {
+            return new ObjectName("com.sun.management", "type", "DiagnosticCommand");
+        } catch (MalformedObjectNameException e) {
+            throw new AssertionError("should never happen", e);
+        }
+    }
 }
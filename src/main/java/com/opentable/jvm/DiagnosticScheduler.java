@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.mogwee.executors.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs periodic diagnostic tasks (such as {@link Memory#pollNmt(Duration, DiagnosticScheduler)}) while keeping
+ * their combined cost under a budget.
+ *
+ * <p>
+ * Each run of each task is timed, both in wall-clock time and in CPU time of the scheduler thread.  The budget is
+ * expressed as a fraction of one core, and is split evenly between the scheduled tasks.  When a task costs more than
+ * its share allows at its requested interval, its interval is stretched (up to a maximum back-off factor); as its cost
+ * comes down, the interval shrinks back to the requested one.
+ *
+ * <p>
+ * Cost is charged as the larger of wall and CPU time.  Diagnostic commands mostly run at a safepoint, during which
+ * every application thread is stalled, so wall time is the more honest measure of what they cost the application.
+ * This also means that under heavy load, when tasks take longer to complete, they automatically back off.
+ */
+public class DiagnosticScheduler implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(DiagnosticScheduler.class);
+
+    /**
+     * Half a percent of one core.
+     */
+    public static final double DEFAULT_BUDGET = 0.005;
+    /**
+     * Intervals will never be stretched beyond this multiple of the requested interval.
+     */
+    public static final int DEFAULT_MAX_BACKOFF = 64;
+
+    /**
+     * Weight of the most recent run when smoothing task cost.
+     */
+    private static final double COST_ALPHA = 0.3;
+
+    private final ScheduledExecutorService exec;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final double budget;
+    private final int maxBackoff;
+    private final Set<Task> tasks = new CopyOnWriteArraySet<>();
+
+    /**
+     * Uses {@link #DEFAULT_BUDGET} and {@link #DEFAULT_MAX_BACKOFF}.
+     * @param name Name of the scheduler thread.
+     */
+    public DiagnosticScheduler(final String name) {
+        this(name, DEFAULT_BUDGET, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * @param name Name of the scheduler thread.
+     * @param budget Fraction of one core that all tasks together may use; e.g., 0.005 for half a percent.
+     * @param maxBackoff Intervals will never be stretched beyond this multiple of the requested interval.
+     */
+    public DiagnosticScheduler(final String name, final double budget, final int maxBackoff) {
+        if (!(budget > 0 && budget <= 1)) {
+            throw new IllegalArgumentException(String.format("budget must be in (0, 1]: %s", budget));
+        }
+        if (maxBackoff < 1) {
+            throw new IllegalArgumentException(String.format("maxBackoff must be at least 1: %d", maxBackoff));
+        }
+        this.exec = Executors.newSingleThreadScheduledExecutor(name);
+        this.budget = budget;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Schedules a task to run first immediately, and then repeatedly with the requested delay between runs, subject to
+     * the overhead budget.  Exceptions thrown by the task are logged and do not cancel it.
+     * @param name Human-readable name of the task, used for logging.
+     * @param command The task.
+     * @param interval The delay between runs, if the budget allows it.
+     * @return {@link Task} that you can use to inspect and cancel the task.
+     */
+    public Task schedule(final String name, final Runnable command, final Duration interval) {
+        final long intervalNanos = interval.toNanos();
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException(String.format("interval must be positive: %s", interval));
+        }
+        final Task task = new Task(name, command, intervalNanos);
+        tasks.add(task);
+        exec.execute(task::run);
+        return task;
+    }
+
+    /**
+     * @return The fraction of one core used by all tasks, as measured over each task's most recent run and interval.
+     */
+    public double getOverhead() {
+        double ret = 0;
+        for (final Task task : tasks) {
+            ret += task.getOverhead();
+        }
+        return ret;
+    }
+
+    /**
+     * Cancels all tasks and initiates immediate shutdown of the scheduler thread.
+     */
+    @Override
+    public void close() {
+        tasks.forEach(task -> task.cancelled = true);
+        tasks.clear();
+        exec.shutdownNow();
+    }
+
+    /**
+     * @param requestedNanos The interval asked for by the task.
+     * @param costNanos The (smoothed) cost of one run of the task.
+     * @param share The fraction of one core the task may use.
+     * @param maxBackoff Maximum multiple of the requested interval.
+     * @return The delay to wait before the next run of the task.
+     */
+    @VisibleForTesting
+    static long nextDelayNanos(final long requestedNanos, final long costNanos, final double share,
+            final int maxBackoff) {
+        final double affordable = costNanos / share;
+        final double max = (double) requestedNanos * maxBackoff;
+        if (affordable <= requestedNanos) {
+            return requestedNanos;
+        }
+        if (affordable >= max) {
+            return (long) max;
+        }
+        return (long) affordable;
+    }
+
+    private long currentThreadCpuNanos() {
+        try {
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returned by {@link #schedule(String, Runnable, Duration)} to inspect and cancel a task.
+     */
+    public final class Task implements Closeable {
+        private final String name;
+        private final Runnable command;
+        private final long requestedNanos;
+        private volatile boolean cancelled;
+        private volatile long lastWallNanos;
+        private volatile long lastCpuNanos;
+        private volatile long costNanos = -1;
+        private volatile long delayNanos;
+
+        private Task(final String name, final Runnable command, final long requestedNanos) {
+            this.name = name;
+            this.command = command;
+            this.requestedNanos = requestedNanos;
+            this.delayNanos = requestedNanos;
+        }
+
+        private void run() {
+            if (cancelled) {
+                return;
+            }
+            final long cpuStart = currentThreadCpuNanos();
+            final long wallStart = System.nanoTime();
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                LOG.warn("diagnostic task {} failed", name, e);
+            }
+            final long wall = System.nanoTime() - wallStart;
+            final long cpuEnd = currentThreadCpuNanos();
+            final long cpu = cpuStart == -1 || cpuEnd == -1 ? 0 : cpuEnd - cpuStart;
+            lastWallNanos = wall;
+            lastCpuNanos = cpu;
+
+            final long cost = Math.max(wall, cpu);
+            final long prev = costNanos;
+            costNanos = prev == -1 ? cost : (long) (COST_ALPHA * cost + (1 - COST_ALPHA) * prev);
+
+            final double share = budget / Math.max(1, tasks.size());
+            final long next = nextDelayNanos(requestedNanos, costNanos, share, maxBackoff);
+            if (next != delayNanos) {
+                LOG.debug("diagnostic task {} costs {}ns per run; interval now {}ms", name, costNanos,
+                        TimeUnit.NANOSECONDS.toMillis(next));
+            }
+            delayNanos = next;
+            if (!cancelled) {
+                try {
+                    exec.schedule(this::run, next, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Scheduler was closed while we were running.
+                    cancelled = true;
+                }
+            }
+        }
+
+        /**
+         * @return The task's name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Wall-clock time taken by the most recent run.
+         */
+        public Duration getLastWallTime() {
+            return Duration.ofNanos(lastWallNanos);
+        }
+
+        /**
+         * @return CPU time taken by the scheduler thread during the most recent run.  Zero if the JVM does not
+         * support measuring thread CPU time.
+         */
+        public Duration getLastCpuTime() {
+            return Duration.ofNanos(lastCpuNanos);
+        }
+
+        /**
+         * @return The delay currently in effect between runs.  At least the requested interval.
+         */
+        public Duration getInterval() {
+            return Duration.ofNanos(delayNanos);
+        }
+
+        /**
+         * @return The fraction of one core used by this task at its current interval.
+         */
+        public double getOverhead() {
+            final long cost = costNanos;
+            if (cost <= 0) {
+                return 0;
+            }
+            return (double) cost / (cost + delayNanos);
+        }
+
+        /**
+         * Cancels the task.  A run in progress will complete.
+         */
+        @Override
+        public void close() {
+            cancelled = true;
+            tasks.remove(this);
+        }
+    }
+}
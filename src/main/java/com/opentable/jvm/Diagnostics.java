@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServerConnection;
+
+import com.mogwee.executors.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures everything we'd otherwise gather by hand with a series of {@code jcmd}s during an incident.
+ */
+public final class Diagnostics {
+    private static final Logger LOG = LoggerFactory.getLogger(Diagnostics.class);
+    private static final String UNAVAILABLE = "unavailable; see application log\n";
+
+    private Diagnostics() {}
+
+    /**
+     * Like {@link #captureBundle(Path)}, with a name with a human-readable timestamp, in the same directory as
+     * {@link Memory#dumpHeap()} would use.
+     * @return Where the bundle was written.  null if there was an error writing it.
+     */
+    @Nullable
+    public static Path captureBundle() {
+        return captureBundle(Memory.getHeapDumpDir().resolve(String.format("diagnostics-%s.zip", Instant.now())));
+    }
+
+    /**
+     * Writes a zip file containing a thread dump, NMT summary, class histogram, VM flags, system properties and GC
+     * heap info.  The parts are gathered concurrently and each is written to its zip entry as soon as it is ready,
+     * so only the parts still in flight are held in memory.
+     * Most of the underlying diagnostic commands need a safepoint, so the JVM will still run those one at a time;
+     * running them concurrently saves the time in between.
+     * The class histogram includes unreachable objects, so that taking it does not force a full GC.
+     * NMT requires JVM argument {@code -XX:NativeMemoryTracking=summary}.
+     * Logs where the bundle will be written, and a warning if a part or the whole bundle could not be written.
+     * @param path Where to write the zip file.
+     * @return {@code path}.  null if there was an error writing the bundle.
+     */
+    @Nullable
+    public static Path captureBundle(@Nonnull final Path path) {
+        LOG.info("writing diagnostic bundle to {}", path);
+        final Map<String, Supplier<String>> parts = new LinkedHashMap<>();
+        parts.put("threads.txt", ThreadInfo::format);
+        parts.put("nmt.txt", Nmt::invoke);
+        parts.put("class-histogram.txt", Diagnostics::classHistogram);
+        parts.put("vm-flags.txt", () -> Dcmd.invoke("vmFlags"));
+        parts.put("system-properties.txt", () -> Dcmd.invoke("vmSystemProperties"));
+        parts.put("gc-heap-info.txt", () -> Dcmd.invoke("gcHeapInfo"));
+        return write(path, parts);
+    }
+
+    /**
+     * Like {@link #captureBundle(Path)}, but of another JVM.  The bundle is written locally.
+     * @param jvm The other JVM.
+     * @param path Where to write the zip file.
+     * @return {@code path}.  null if there was an error writing the bundle.
+     */
+    @Nullable
+    public static Path captureBundle(@Nonnull final RemoteJvm jvm, @Nonnull final Path path) {
+        LOG.info("writing diagnostic bundle of {} to {}", jvm, path);
+        final MBeanServerConnection server = jvm.getConnection();
+        final Map<String, Supplier<String>> parts = new LinkedHashMap<>();
+        parts.put("threads.txt", () -> ThreadInfo.format(jvm));
+        parts.put("nmt.txt", () -> Nmt.invoke(jvm));
+        parts.put("class-histogram.txt", () -> classHistogram(jvm));
+        parts.put("vm-flags.txt", () -> Dcmd.invoke(server, "vmFlags"));
+        parts.put("system-properties.txt", () -> Dcmd.invoke(server, "vmSystemProperties"));
+        parts.put("gc-heap-info.txt", () -> Dcmd.invoke(server, "gcHeapInfo"));
+        return write(path, parts);
+    }
+
+    /**
+     * Like {@code jcmd GC.class_histogram -all}.  Includes unreachable objects, so that taking it does not force a
+     * full GC.
+     * Logs a warning if there was an error getting the histogram.
+     * @return Human-readable class histogram.  null if there was an error getting it.
+     */
+    @Nullable
+    public static String classHistogram() {
+        return Dcmd.invoke("gcClassHistogram", "-all");
+    }
+
+    /**
+     * Like {@link #classHistogram()}, but in another JVM.
+     * @param jvm The other JVM.
+     * @return Human-readable class histogram.  null if there was an error getting it.
+     */
+    @Nullable
+    public static String classHistogram(@Nonnull final RemoteJvm jvm) {
+        return Dcmd.invoke(jvm.getConnection(), "gcClassHistogram", "-all");
+    }
+
+    @Nullable
+    private static Path write(final Path path, final Map<String, Supplier<String>> parts) {
+        final ExecutorService exec = Executors.newFixedThreadPool(parts.size(), "diagnostic-bundle");
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            final CompletionService<Map.Entry<String, String>> done = new ExecutorCompletionService<>(exec);
+            parts.forEach((name, part) -> done.submit(() -> new AbstractMap.SimpleImmutableEntry<>(name, part.get())));
+            for (int i = 0; i < parts.size(); i++) {
+                final Future<Map.Entry<String, String>> f = done.take();
+                final Map.Entry<String, String> part;
+                try {
+                    part = f.get();
+                } catch (ExecutionException e) {
+                    LOG.warn("error capturing diagnostic bundle part", e);
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(part.getKey()));
+                // Not closed, as that would close the zip stream.
+                final Writer w = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+                w.write(part.getValue() == null ? UNAVAILABLE : part.getValue());
+                w.flush();
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            LOG.warn("error writing diagnostic bundle", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("interrupted writing diagnostic bundle", e);
+            return null;
+        } finally {
+            exec.shutdownNow();
+        }
+        return path;
+    }
+}
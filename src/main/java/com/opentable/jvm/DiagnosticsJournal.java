@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed-size ring of compact binary memory and thread records in a memory-mapped file.
+ *
+ * <p>
+ * Appending is a handful of stores into the mapping; no system calls.  The kernel's page cache owns the data, so it
+ * survives the process being killed, including by the OOM killer, and {@link #read(Path)} can reconstruct the
+ * last minutes before the kill from the file left behind.  (It does not survive the host going down.)
+ *
+ * <p>
+ * Appends are thread-safe.
+ */
+public class DiagnosticsJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(DiagnosticsJournal.class);
+
+    /**
+     * Default file name, in {@link Memory#getHeapDumpDir()}.
+     */
+    public static final String DEFAULT_FILE_NAME = "diagnostics-journal.bin";
+    /**
+     * Suffix given to a journal left behind by a previous process when a new one is opened in its place.
+     */
+    public static final String PREVIOUS_SUFFIX = ".prev";
+
+    private static final int MAGIC = 0x4f544a4a; // "OTJJ"
+    private static final int VERSION = 1;
+    private static final int VALUES = 5;
+
+    // Header layout.
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_PID = 16;
+    private static final int HEADER_START = 24;
+    // Bytes 32 to 63 are reserved.
+    private static final int HEADER_SIZE = 64;
+
+    // Record layout.  The sequence number is zeroed first and written last, with fences in between, so that a
+    // record with a valid sequence number is complete.
+    private static final int RECORD_SEQUENCE = 0;
+    private static final int RECORD_TIMESTAMP = 8;
+    private static final int RECORD_TYPE = 16;
+    private static final int RECORD_VALUES = 24;
+    private static final int RECORD_SIZE = RECORD_VALUES + VALUES * 8;
+
+    private final MappedByteBuffer buf;
+    private final int capacity;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private long next;
+    private boolean closed;
+
+    private DiagnosticsJournal(final MappedByteBuffer buf, final int capacity) {
+        this.buf = buf;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Opens a new journal at {@link #DEFAULT_FILE_NAME} in {@link Memory#getHeapDumpDir()}.
+     * @param capacity Number of records to keep.
+     * @return The journal.
+     * @throws IOException if the file could not be created.
+     * @see #open(Path, int)
+     */
+    public static DiagnosticsJournal open(final int capacity) throws IOException {
+        return open(Memory.getHeapDumpDir().resolve(DEFAULT_FILE_NAME), capacity);
+    }
+
+    /**
+     * Opens a new, empty journal.  If a journal already exists at {@code path}, presumably left by a previous process,
+     * it is first moved aside by appending {@link #PREVIOUS_SUFFIX} to its name, so that it can still be
+     * {@link #read(Path) read}.
+     * @param path Where to put the journal.
+     * @param capacity Number of records to keep; each takes 64 bytes.
+     * @return The journal.
+     * @throws IOException if the file could not be created.
+     */
+    public static DiagnosticsJournal open(@Nonnull final Path path, final int capacity) throws IOException {
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+            throw new IllegalArgumentException(String.format("capacity out of range: %d", capacity));
+        }
+        if (Files.exists(path)) {
+            final Path prev = path.resolveSibling(path.getFileName() + PREVIOUS_SUFFIX);
+            Files.move(path, prev, StandardCopyOption.REPLACE_EXISTING);
+            LOG.info("moved previous diagnostics journal to {}", prev);
+        }
+        final long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        final MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(HEADER_VERSION, VERSION);
+        buf.putInt(HEADER_CAPACITY, capacity);
+        buf.putLong(HEADER_PID, ProcessHandle.current().pid());
+        buf.putLong(HEADER_START, System.currentTimeMillis());
+        // Last, so a half-initialized file is not mistaken for a journal.
+        buf.putInt(HEADER_MAGIC, MAGIC);
+        LOG.info("writing diagnostics journal to {}", path);
+        return new DiagnosticsJournal(buf, capacity);
+    }
+
+    /**
+     * Decodes a journal; typically one left behind by a process that has since died.
+     * Records that were being written when the process died are skipped.
+     * @param path The journal file.
+     * @return Records, oldest first.
+     * @throws IOException if the file could not be read, or is not a journal.
+     */
+    public static List<Record> read(@Nonnull final Path path) throws IOException {
+        final MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(HEADER_MAGIC) != MAGIC) {
+            throw new IOException(String.format("%s is not a diagnostics journal", path));
+        }
+        if (buf.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException(String.format("unsupported journal version %d", buf.getInt(HEADER_VERSION)));
+        }
+        final int capacity = buf.getInt(HEADER_CAPACITY);
+        if (capacity <= 0 || HEADER_SIZE + (long) capacity * RECORD_SIZE > buf.capacity()) {
+            throw new IOException(String.format("journal capacity %d does not fit in file", capacity));
+        }
+        final Type[] types = Type.values();
+        final List<Record> ret = new ArrayList<>(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            final int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            final long seq = buf.getLong(offset + RECORD_SEQUENCE);
+            final int type = buf.get(offset + RECORD_TYPE);
+            // Stored one-based, so zero means never written or being rewritten.
+            if (seq <= 0 || (seq - 1) % capacity != slot || type < 0 || type >= types.length) {
+                continue;
+            }
+            final long[] values = new long[VALUES];
+            for (int i = 0; i < VALUES; i++) {
+                values[i] = buf.getLong(offset + RECORD_VALUES + i * 8);
+            }
+            ret.add(new Record(seq - 1, buf.getLong(offset + RECORD_TIMESTAMP), types[type], values));
+        }
+        ret.sort(Comparator.comparingLong(r -> r.sequence));
+        return Collections.unmodifiableList(ret);
+    }
+
+    /**
+     * Appends a {@link Type#NMT} record.
+     * @param nmt NMT to record.
+     */
+    public void append(@Nonnull final Nmt nmt) {
+        append(Type.NMT, nmt.total.reserved, nmt.total.committed, committed(nmt, "Java Heap"),
+                committed(nmt, "Class"), committed(nmt, "Thread"));
+    }
+
+    /**
+     * Appends a {@link Type#HEAP} record, and a {@link Type#NMT} record if the snapshot includes NMT.
+     * @param snapshot Snapshot to record.
+     */
+    public void append(@Nonnull final MemorySnapshot snapshot) {
+        append(Type.HEAP, snapshot.heapUsed, snapshot.heapCommitted, snapshot.nonHeapUsed, snapshot.directUsed,
+                snapshot.mappedUsed);
+        if (snapshot.nmt != null) {
+            append(snapshot.nmt);
+        }
+    }
+
+    /**
+     * Appends a {@link Type#PROCESS} record.
+     * @param process Process memory to record.
+     */
+    public void append(@Nonnull final ProcessMemory process) {
+        append(Type.PROCESS, process.rss, process.rssAnon, process.rssFile, process.swap, process.rssPeak);
+    }
+
+    /**
+     * Appends a {@link Type#THREADS} record with the current thread counts.
+     */
+    public void appendThreads() {
+        append(Type.THREADS, threads.getThreadCount(), threads.getDaemonThreadCount(), threads.getPeakThreadCount(),
+                threads.getTotalStartedThreadCount(), -1);
+    }
+
+    /**
+     * Schedules periodic recording of a {@link Memory#snapshot()}, process memory and thread counts.
+     * @param scheduler The scheduler on which to run.
+     * @param interval How often to record.
+     * @return {@link DiagnosticScheduler.Task} that you can use to cancel the recording.
+     */
+    public DiagnosticScheduler.Task schedule(final DiagnosticScheduler scheduler, final Duration interval) {
+        return scheduler.schedule("diagnostics-journal", () -> {
+            append(Memory.snapshot());
+            final ProcessMemory process = ProcessMemory.get();
+            if (process != null) {
+                append(process);
+            }
+            appendThreads();
+        }, interval);
+    }
+
+    /**
+     * Appends a record.
+     * @param type Record type.
+     * @param values Up to five values; see {@link Type}.
+     */
+    public synchronized void append(@Nonnull final Type type, final long... values) {
+        if (closed) {
+            return;
+        }
+        if (values.length > VALUES) {
+            throw new IllegalArgumentException(String.format("at most %d values: %d", VALUES, values.length));
+        }
+        final int offset = HEADER_SIZE + (int) (next % capacity) * RECORD_SIZE;
+        buf.putLong(offset + RECORD_SEQUENCE, 0);
+        VarHandle.releaseFence();
+        buf.putLong(offset + RECORD_TIMESTAMP, System.currentTimeMillis());
+        buf.put(offset + RECORD_TYPE, (byte) type.ordinal());
+        for (int i = 0; i < VALUES; i++) {
+            buf.putLong(offset + RECORD_VALUES + i * 8, i < values.length ? values[i] : -1);
+        }
+        VarHandle.releaseFence();
+        buf.putLong(offset + RECORD_SEQUENCE, next + 1);
+        ++next;
+    }
+
+    /**
+     * Flushes the journal to disk and stops further appends.  Not needed for the data to survive the process.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            buf.force();
+        }
+    }
+
+    private static long committed(final Nmt nmt, final String category) {
+        final Nmt.Usage usage = nmt.categories.get(category);
+        return usage == null ? -1 : usage.committed;
+    }
+
+    /**
+     * Record types, and the meaning of their values.  Bytes are in bytes; -1 means not available.
+     * Only append new types at the end; the ordinal is what is stored.
+     */
+    public enum Type {
+        /** NMT: total reserved, total committed, "Java Heap" committed, "Class" committed, "Thread" committed. */
+        NMT,
+        /** Heap: heap used, heap committed, non-heap used, direct buffers used, mapped buffers used. */
+        HEAP,
+        /** Threads: live, daemon, peak, total started. */
+        THREADS,
+        /** Process: RSS, anonymous RSS, file RSS, swap, peak RSS. */
+        PROCESS,
+    }
+
+    /**
+     * A decoded record.
+     */
+    public static class Record {
+        /** Zero-based, in order of appending. */
+        public final long sequence;
+        /** Milliseconds since the epoch. */
+        public final long timestamp;
+        public final Type type;
+        private final long[] values;
+
+        Record(final long sequence, final long timestamp, final Type type, final long[] values) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.values = values;
+        }
+
+        /**
+         * @param i Index of the value; see {@link Type}.
+         * @return The value.
+         */
+        public long get(final int i) {
+            return values[i];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder().append(sequence).append(' ').append(timestamp).append(' ')
+                    .append(type);
+            for (final long v : values) {
+                sb.append(' ').append(v);
+            }
+            return sb.toString();
+        }
+    }
+}
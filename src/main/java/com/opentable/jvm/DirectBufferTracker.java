@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks direct and mapped {@link ByteBuffer} memory over time, to chase {@code OutOfMemoryError: Direct buffer memory}
+ * without heap dumps.
+ *
+ * <p>
+ * Every {@link #sample()} reads the JVM's {@code direct} and {@code mapped} buffer pools, estimates the growth of
+ * direct memory, and from that the time left until {@code -XX:MaxDirectMemorySize} is hit.
+ *
+ * <p>
+ * Optionally, allocation sites are captured too.  The JDK offers no cheap event for direct allocations, so this needs
+ * a hook: allocate through {@link #allocateDirect(int)}, or pass buffers allocated elsewhere (e.g. by a pooling
+ * library, or {@code FileChannel.map}) to {@link #track(ByteBuffer)}.  One in every {@code sampleEvery} of those calls
+ * captures the top frames of the caller's stack, and registers a cleaner so the buffer's memory is subtracted again
+ * once it is freed; figures per site are scaled back up by {@code sampleEvery}.  Sites live in a fixed-size table; when
+ * it is full, the site whose live memory grew least since the last {@link #sample()} makes room, so the ones that are
+ * leaking stay.  Sites that have not yet been through a sample are never evicted, so that a leak that starts late gets
+ * the chance to show its growth; while the table is full of such sites, new sites are not captured.
+ */
+public class DirectBufferTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectBufferTracker.class);
+
+    /**
+     * Maximum number of allocation sites tracked.
+     */
+    public static final int DEFAULT_MAX_SITES = 64;
+    /**
+     * Number of frames that identify an allocation site.
+     */
+    public static final int DEFAULT_DEPTH = 6;
+
+    private static final String DIRECT = "direct";
+    private static final String MAPPED = "mapped";
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final List<BufferPoolMXBean> BUFFERS = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    private final int sampleEvery;
+    private final int maxSites;
+    private final int depth;
+    private final long maxDirectMemory = maxDirectMemory();
+    private final GrowthWindow directUsed;
+    private final Map<List<StackTraceElement>, Site> sites = new HashMap<>();
+
+    /**
+     * Tracks buffer pools only; {@link #allocateDirect(int)} and {@link #track(ByteBuffer)} do not capture sites.
+     * @param window How far back to look when estimating growth.
+     */
+    public DirectBufferTracker(final Duration window) {
+        this(window, 0, DEFAULT_MAX_SITES, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param window How far back to look when estimating growth.
+     * @param sampleEvery Capture the site of one in this many tracked allocations; 1 for all, 0 for none.
+     * @param maxSites Maximum number of allocation sites to keep.
+     * @param depth Number of frames that identify an allocation site.
+     */
+    public DirectBufferTracker(final Duration window, final int sampleEvery, final int maxSites, final int depth) {
+        if (sampleEvery < 0) {
+            throw new IllegalArgumentException(String.format("sampleEvery must not be negative: %d", sampleEvery));
+        }
+        if (maxSites < 1 || depth < 1) {
+            throw new IllegalArgumentException(String.format("maxSites and depth must be at least 1: %d, %d",
+                    maxSites, depth));
+        }
+        this.sampleEvery = sampleEvery;
+        this.maxSites = maxSites;
+        this.depth = depth;
+        this.directUsed = new GrowthWindow(window.toNanos());
+    }
+
+    /**
+     * Like {@link ByteBuffer#allocateDirect(int)}, but possibly recording the allocation site.
+     * @param capacity The new buffer's capacity, in bytes.
+     * @return The new buffer.
+     */
+    public ByteBuffer allocateDirect(final int capacity) {
+        return track(ByteBuffer.allocateDirect(capacity));
+    }
+
+    /**
+     * Possibly records the site of a direct or mapped buffer allocated elsewhere.  Call once per buffer, right after
+     * allocating it; slices and duplicates share their parent's memory, and should not be tracked.
+     * Heap buffers are ignored.
+     * @param buf The buffer.
+     * @param <T> Type of the buffer.
+     * @return {@code buf}.
+     */
+    public <T extends ByteBuffer> T track(@Nonnull final T buf) {
+        if (sampleEvery == 0 || !buf.isDirect()
+                || sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return buf;
+        }
+        final List<StackTraceElement> frames = StackWalker.getInstance().walk(s -> s
+                .dropWhile(f -> f.getClassName().equals(DirectBufferTracker.class.getName()))
+                .limit(depth)
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .collect(Collectors.toList()));
+        final Site site = allocated(frames, buf.capacity());
+        if (site != null) {
+            CLEANER.register(buf, new Freed(site, buf.capacity()));
+        }
+        return buf;
+    }
+
+    /**
+     * Reads the buffer pools and records a sample.
+     * @return Buffer pools, growth and allocation sites.
+     */
+    public Report sample() {
+        long directCount = -1;
+        long directUsedBytes = -1;
+        long directCapacity = -1;
+        long mappedCount = -1;
+        long mappedUsed = -1;
+        long mappedCapacity = -1;
+        for (final BufferPoolMXBean bean : BUFFERS) {
+            if (DIRECT.equals(bean.getName())) {
+                directCount = bean.getCount();
+                directUsedBytes = bean.getMemoryUsed();
+                directCapacity = bean.getTotalCapacity();
+            } else if (MAPPED.equals(bean.getName())) {
+                mappedCount = bean.getCount();
+                mappedUsed = bean.getMemoryUsed();
+                mappedCapacity = bean.getTotalCapacity();
+            }
+        }
+        final double growth;
+        final List<SiteReport> reports = new ArrayList<>();
+        synchronized (this) {
+            directUsed.add(System.nanoTime(), directUsedBytes);
+            growth = directUsed.slopePerSecond();
+            for (final Site site : sites.values()) {
+                final long live = site.liveBytes * sampleEvery;
+                reports.add(new SiteReport(site.frames, site.liveCount * sampleEvery, live,
+                        site.allocatedCount * sampleEvery, site.allocatedBytes * sampleEvery,
+                        site.lastSampledLiveBytes == -1 ? live : site.growth() * sampleEvery));
+                site.lastSampledLiveBytes = site.liveBytes;
+            }
+        }
+        reports.sort((a, b) -> a.growth != b.growth
+                ? Long.compare(b.growth, a.growth)
+                : Long.compare(b.liveBytes, a.liveBytes));
+        return new Report(directCount, directUsedBytes, directCapacity, mappedCount, mappedUsed, mappedCapacity,
+                maxDirectMemory, growth, reports);
+    }
+
+    /**
+     * Schedules {@link #sample()}, logging each report.
+     * @param scheduler The scheduler on which to run.
+     * @param interval The interval with which to sample, if the scheduler's budget allows it.
+     * @return {@link DiagnosticScheduler.Task} that you can use to cancel sampling.
+     */
+    public DiagnosticScheduler.Task schedule(final DiagnosticScheduler scheduler, final Duration interval) {
+        return scheduler.schedule("direct-buffer-tracker", () -> LOG.info("\n{}", sample()), interval);
+    }
+
+    /**
+     * @return The site, counting the allocation.  null if the table is full of sites that have not been sampled yet.
+     */
+    @VisibleForTesting
+    @Nullable
+    synchronized Site allocated(final List<StackTraceElement> frames, final long bytes) {
+        Site site = sites.get(frames);
+        if (site == null) {
+            if (sites.size() >= maxSites) {
+                Site least = null;
+                for (final Site s : sites.values()) {
+                    if (s.lastSampledLiveBytes != -1 && (least == null || s.growth() < least.growth()
+                            || (s.growth() == least.growth() && s.liveBytes < least.liveBytes))) {
+                        least = s;
+                    }
+                }
+                if (least == null) {
+                    return null;
+                }
+                sites.remove(least.frames);
+            }
+            site = new Site(frames);
+            sites.put(frames, site);
+        }
+        site.liveCount++;
+        site.liveBytes += bytes;
+        site.allocatedCount++;
+        site.allocatedBytes += bytes;
+        return site;
+    }
+
+    @VisibleForTesting
+    synchronized void freed(final Site site, final long bytes) {
+        site.liveCount--;
+        site.liveBytes -= bytes;
+    }
+
+    /**
+     * @return {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size.  -1 if not known.
+     */
+    private static long maxDirectMemory() {
+        try {
+            final HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            final long ret = Long.parseLong(bean.getVMOption("MaxDirectMemorySize").getValue());
+            return ret > 0 ? ret : Runtime.getRuntime().maxMemory();
+        } catch (IllegalArgumentException e) {
+            LOG.warn("error getting MaxDirectMemorySize", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Cleaning action; must not refer to the buffer.
+     */
+    private final class Freed implements Runnable {
+        private final Site site;
+        private final long bytes;
+
+        Freed(final Site site, final long bytes) {
+            this.site = site;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            freed(site, bytes);
+        }
+    }
+
+    /**
+     * Guarded by the tracker.  Raw sampled figures.
+     */
+    @VisibleForTesting
+    static final class Site {
+        final List<StackTraceElement> frames;
+        long liveCount;
+        long liveBytes;
+        long allocatedCount;
+        long allocatedBytes;
+        /** {@link #liveBytes} at the last {@link #sample()}; -1 if not sampled yet. */
+        long lastSampledLiveBytes = -1;
+
+        Site(final List<StackTraceElement> frames) {
+            this.frames = frames;
+        }
+
+        /**
+         * @return Growth of live bytes since the last sample.  Only meaningful once sampled.
+         */
+        long growth() {
+            return liveBytes - lastSampledLiveBytes;
+        }
+    }
+
+    /**
+     * One allocation site.  Figures are estimates, scaled up from the sampled allocations.
+     */
+    public static class SiteReport {
+        /** Top frames of the allocating stack, innermost first. */
+        public final List<StackTraceElement> frames;
+        /** Buffers allocated here and not yet freed. */
+        public final long liveCount;
+        /** Capacity of buffers allocated here and not yet freed. */
+        public final long liveBytes;
+        /** Buffers allocated here since tracking began. */
+        public final long allocatedCount;
+        /** Capacity of buffers allocated here since tracking began. */
+        public final long allocatedBytes;
+        /** Change in {@link #liveBytes} since the previous {@link #sample()}. */
+        public final long growth;
+
+        SiteReport(final List<StackTraceElement> frames, final long liveCount, final long liveBytes,
+                final long allocatedCount, final long allocatedBytes, final long growth) {
+            this.frames = Collections.unmodifiableList(frames);
+            this.liveCount = liveCount;
+            this.liveBytes = liveBytes;
+            this.allocatedCount = allocatedCount;
+            this.allocatedBytes = allocatedBytes;
+            this.growth = growth;
+        }
+    }
+
+    /**
+     * Returned by {@link #sample()}.  Byte and count fields are -1 if not available.
+     */
+    public static class Report {
+        public final long directCount;
+        public final long directUsed;
+        public final long directCapacity;
+        public final long mappedCount;
+        public final long mappedUsed;
+        public final long mappedCapacity;
+        /** {@code -XX:MaxDirectMemorySize}, or its default. */
+        public final long maxDirectMemory;
+        /** Growth of direct memory used over the tracker's window, in bytes per second. */
+        public final double growthPerSecond;
+        /**
+         * Estimated time until direct memory hits {@link #maxDirectMemory} at {@link #growthPerSecond}.
+         * null if it is not growing.
+         */
+        @Nullable
+        public final Duration timeToLimit;
+        /** Allocation sites, fastest-growing first.  Empty unless sites are being captured. */
+        public final List<SiteReport> sites;
+
+        Report(final long directCount, final long directUsed, final long directCapacity, final long mappedCount,
+                final long mappedUsed, final long mappedCapacity, final long maxDirectMemory,
+                final double growthPerSecond, final List<SiteReport> sites) {
+            this.directCount = directCount;
+            this.directUsed = directUsed;
+            this.directCapacity = directCapacity;
+            this.mappedCount = mappedCount;
+            this.mappedUsed = mappedUsed;
+            this.mappedCapacity = mappedCapacity;
+            this.maxDirectMemory = maxDirectMemory;
+            this.growthPerSecond = growthPerSecond;
+            if (maxDirectMemory == -1 || directUsed == -1 || growthPerSecond <= 0) {
+                this.timeToLimit = null;
+            } else {
+                this.timeToLimit = Duration.ofSeconds(
+                        (long) Math.max(0, (maxDirectMemory - directUsed) / growthPerSecond));
+            }
+            this.sites = Collections.unmodifiableList(sites);
+        }
+
+        /**
+         * @return Human-readable summary, with one paragraph per allocation site.
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("direct buffers: ");
+            pool(sb, directCount, directUsed);
+            if (maxDirectMemory != -1 && directUsed != -1) {
+                sb.append(" of max ").append(Memory.formatBytes(maxDirectMemory));
+            }
+            if (timeToLimit != null) {
+                sb.append("; limit reached in ~").append(timeToLimit);
+            }
+            sb.append("; mapped buffers: ");
+            pool(sb, mappedCount, mappedUsed);
+            for (final SiteReport site : sites) {
+                sb.append(String.format("%n%s live in %d buffers (%s%s since last sample), %s allocated in total:",
+                        Memory.formatBytes(site.liveBytes), site.liveCount, site.growth < 0 ? "-" : "+",
+                        Memory.formatBytes(Math.abs(site.growth)), Memory.formatBytes(site.allocatedBytes)));
+                for (final StackTraceElement frame : site.frames) {
+                    sb.append("\n\tat ").append(frame);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static void pool(final StringBuilder sb, final long count, final long used) {
+            if (count == -1 || used == -1) {
+                sb.append("n/a");
+            } else {
+                sb.append(count).append(", ").append(Memory.formatBytes(used));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent samples of a value, for estimating its growth rate.  Not thread-safe.
+ */
+final class GrowthWindow {
+    private static final int MAX_SAMPLES = 64;
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long windowNanos;
+    private final long[] times = new long[MAX_SAMPLES];
+    private final long[] values = new long[MAX_SAMPLES];
+    private int start;
+    private int count;
+
+    /**
+     * @param windowNanos Samples older than this are dropped.  At most 64 samples are kept in any case.
+     */
+    GrowthWindow(final long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    void add(final long nowNanos, final long value) {
+        while (count > 0 && nowNanos - times[start] > windowNanos) {
+            start = (start + 1) % MAX_SAMPLES;
+            --count;
+        }
+        if (count == MAX_SAMPLES) {
+            start = (start + 1) % MAX_SAMPLES;
+            --count;
+        }
+        final int i = (start + count) % MAX_SAMPLES;
+        times[i] = nowNanos;
+        values[i] = value;
+        ++count;
+    }
+
+    /**
+     * Least-squares fit, so that a single GC or page cache flush doesn't throw off the estimate.
+     * @return Growth per second; 0 with fewer than two samples.
+     */
+    double slopePerSecond() {
+        if (count < 2) {
+            return 0;
+        }
+        final long t0 = times[start];
+        double sumT = 0;
+        double sumV = 0;
+        for (int k = 0; k < count; k++) {
+            final int i = (start + k) % MAX_SAMPLES;
+            sumT += (times[i] - t0) / NANOS_PER_SECOND;
+            sumV += values[i];
+        }
+        final double meanT = sumT / count;
+        final double meanV = sumV / count;
+        double num = 0;
+        double den = 0;
+        for (int k = 0; k < count; k++) {
+            final int i = (start + k) % MAX_SAMPLES;
+            final double dt = (times[i] - t0) / NANOS_PER_SECOND - meanT;
+            num += dt * (values[i] - meanV);
+            den += dt * dt;
+        }
+        return den == 0 ? 0 : num / den;
+    }
+}
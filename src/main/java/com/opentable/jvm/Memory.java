@@ -32,17 +32,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.sun.management.HotSpotDiagnosticMXBean;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.mogwee.executors.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +56,15 @@ public class Memory {
     @VisibleForTesting
     static final String DEFAULT_TMP_PATH = "/tmp";
 
+    /**
+     * How far back {@link #pollNmt(Duration)} looks when estimating container memory growth.
+     */
+    private static final Duration HEADROOM_WINDOW = Duration.ofMinutes(15);
+
+    private static final String HOTSPOT_DIAGNOSTIC = "com.sun.management:type=HotSpotDiagnostic";
+
+    private static final Duration NMT_MXBEAN_INTERVAL = Duration.ofSeconds(10);
+
     // Replaceable reference for testing.
     @SuppressWarnings({"PMD.MutableStaticState"})
     @VisibleForTesting
@@ -92,6 +101,23 @@ public class Memory {
         }
     }
 
+    /**
+     * Dumps another JVM's heap.
+     * Logs where the heap dump will be written.
+     * Logs a warning if there was a problem preventing the heap dump from being successfully created.
+     * @param jvm The other JVM.
+     * @param path Where to put the heap dump, in the other JVM's filesystem; it must not exist yet.
+     */
+    public static void dumpHeap(@Nonnull final RemoteJvm jvm, final Path path) {
+        LOG.info("writing heap dump of {} to {}", jvm, path);
+        try {
+            ManagementFactory.newPlatformMXBeanProxy(jvm.getConnection(), HOTSPOT_DIAGNOSTIC,
+                    HotSpotDiagnosticMXBean.class).dumpHeap(path.toString(), true);
+        } catch (IOException e) {
+            LOG.warn("error writing heap dump of {}", jvm, e);
+        }
+    }
+
     /**
      * Requires JVM argument {@code -XX:NativeMemoryTracking=summary}.
      * Logs a warning if there was an error getting the NMT summary or if NMT was disabled.
@@ -121,37 +147,110 @@ public class Memory {
         return Nmt.get();
     }
 
+    /**
+     * Like {@link #getNmt()}, but in another JVM, which must have been started with
+     * {@code -XX:NativeMemoryTracking=summary}.
+     * @param jvm The other JVM.
+     * @return {@link Nmt} instance. null if there was an error getting the summary.
+     * @see Nmt#invoke(RemoteJvm)
+     */
+    @Nullable
+    public static Nmt getNmt(@Nonnull final RemoteJvm jvm) {
+        return Nmt.get(jvm);
+    }
+
+    /**
+     * Collects heap, memory pool, buffer pool and NMT figures together, so that they line up with one another.
+     * NMT requires JVM argument {@code -XX:NativeMemoryTracking=summary}; without it, {@link MemorySnapshot#nmt} will
+     * be null, and a warning will be logged once per process instance.
+     * @return A new immutable snapshot.
+     */
+    public static MemorySnapshot snapshot() {
+        return MemorySnapshot.take(true);
+    }
+
     /**
      * Kicks off a poller thread that will periodically log human-readable NMT.
      * Uses {@link #formatNmt()} internally, and so also requires JVM argument
      * {@code -XX:NativeMemoryTracking=summary}.
+     * The poller runs on its own {@link DiagnosticScheduler} with the default overhead budget, so the interval will
+     * be stretched if gathering NMT turns out to be expensive.
+     * When running in a memory-limited container, also logs the headroom left before the limit, and an estimate of
+     * when it will be hit; see {@link ContainerMemory.Tracker}.
      * @param interval The interval with which to poll and log NMT.
      * @return {@link NmtCloseable} that you can use to terminate the poller.
      */
     public static NmtCloseable pollNmt(final Duration interval) {
-        final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor("nmt-poller");
-        final long intervalNanos = TimeUnit.SECONDS.toNanos(interval.getSeconds()) +
-                TimeUnit.NANOSECONDS.toNanos(interval.getNano());
+        final DiagnosticScheduler scheduler = new DiagnosticScheduler("nmt-poller");
+        pollNmt(interval, scheduler);
+        return scheduler::close;
+    }
+
+    /**
+     * Like {@link #pollNmt(Duration)}, but runs on a shared scheduler, whose overhead budget it will share with the
+     * scheduler's other tasks.
+     * @param interval The interval with which to poll and log NMT, if the budget allows it.
+     * @param scheduler The scheduler on which to run.
+     * @return {@link NmtCloseable} that you can use to terminate the poller.  Closing it does not close the scheduler.
+     */
+    public static NmtCloseable pollNmt(final Duration interval, final DiagnosticScheduler scheduler) {
+        final ContainerMemory.Tracker container = new ContainerMemory.Tracker(HEADROOM_WINDOW);
         final Runnable command = () -> {
-            final String summary = formatNmt();
+            final Nmt nmt = getNmt();
             // null return values will cause a warning to get logged without us needing to do so.
-            if (summary != null) {
-                LOG.info("\n" + summary);
+            if (nmt != null) {
+                LOG.info("\n" + nmt);
+            }
+            final ContainerMemory.Headroom headroom = container.sample(nmt);
+            if (headroom != null && headroom.container.limit != -1) {
+                LOG.info(headroom.toString());
             }
         };
-        exec.scheduleWithFixedDelay(command, 0, intervalNanos, TimeUnit.NANOSECONDS);
-        return exec::shutdownNow;
+        return scheduler.schedule("nmt-poller", command, interval)::close;
     }
 
-    static String formatBytes(final long bytes) {
-        final int k = 1024;
-        if (bytes < k) {
-            return bytes + " B";
+    /**
+     * Registers an {@link NmtMXBean} as {@link NmtMXBean#OBJECT_NAME} on the platform MBean server, refreshed at most
+     * every ten seconds.
+     * @return {@link NmtCloseable} that you can use to unregister the bean.  null if there was an error registering it.
+     * @see #registerNmtMXBean(Duration)
+     */
+    @Nullable
+    public static NmtCloseable registerNmtMXBean() {
+        return registerNmtMXBean(NMT_MXBEAN_INTERVAL);
+    }
+
+    /**
+     * Registers an {@link NmtMXBean} as {@link NmtMXBean#OBJECT_NAME} on the platform MBean server.
+     * Requires JVM argument {@code -XX:NativeMemoryTracking=summary}.
+     * Logs a warning if there was an error registering the bean, e.g. because one is already registered.
+     * @param interval NMT is fetched at most once per this interval, no matter how often the bean is read.
+     * @return {@link NmtCloseable} that you can use to unregister the bean.  null if there was an error registering it.
+     */
+    @Nullable
+    public static NmtCloseable registerNmtMXBean(final Duration interval) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name;
+        try {
+            name = new ObjectName(NmtMXBean.OBJECT_NAME);
+            server.registerMBean(new NmtMXBeanImpl(interval), name);
+        } catch (JMException e) {
+            LOG.warn("error registering {}", NmtMXBean.OBJECT_NAME, e);
+            return null;
         }
-        final int exp = (int)(Math.log(bytes) / Math.log(k));
-        final char unit = "KMGTPEZ".charAt(exp - 1);
-        final double printBytes = bytes / Math.pow(k, exp);
-        return String.format("%.2f %ciB", printBytes, unit);
+        return () -> {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOG.warn("error unregistering {}", name, e);
+            }
+        };
+    }
+
+    static String formatBytes(final long bytes) {
+        final StringBuilder sb = new StringBuilder(16);
+        ByteFormat.append(sb, bytes);
+        return sb.toString();
     }
 
     @Nullable
@@ -210,11 +309,12 @@ public class Memory {
     }
 
     /**
-     * Returned by {@link #pollNmt(Duration)} call to facilitate poller shutdown.
+     * Returned by {@link #pollNmt(Duration)} and {@link #pollNmt(Duration, DiagnosticScheduler)} calls to facilitate
+     * poller shutdown, and by {@link #registerNmtMXBean(Duration)} to unregister the bean.
      */
     public interface NmtCloseable extends Closeable {
         /**
-         * Initiates immediate shutdown of the poller.
+         * Initiates immediate shutdown of the poller, or unregisters the bean.
          */
         void close();
     }
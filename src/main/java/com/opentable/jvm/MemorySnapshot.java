@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Heap, memory pool, buffer pool and NMT figures, all collected together in one pass.
+ * Immutable.  Byte fields are -1 if not available.
+ * @see Memory#snapshot()
+ */
+public class MemorySnapshot {
+    private static final String DIRECT = "direct";
+    private static final String MAPPED = "mapped";
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final List<MemoryPoolMXBean> POOLS = ManagementFactory.getMemoryPoolMXBeans();
+    private static final List<BufferPoolMXBean> BUFFERS = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    /** Wall-clock time the snapshot was taken, in milliseconds since the epoch. */
+    public final long timestamp;
+    /** {@link System#nanoTime()} when the snapshot was taken, for computing rates between snapshots. */
+    public final long nanoTime;
+
+    public final long heapUsed;
+    public final long heapCommitted;
+    public final long heapMax;
+    public final long nonHeapUsed;
+    public final long nonHeapCommitted;
+
+    /** Number of direct {@link java.nio.ByteBuffer}s. */
+    public final long directCount;
+    /** Memory used by direct buffers. */
+    public final long directUsed;
+    /** Total capacity of direct buffers. */
+    public final long directCapacity;
+    /** Number of mapped {@link java.nio.MappedByteBuffer}s. */
+    public final long mappedCount;
+    /** Memory used by mapped buffers. */
+    public final long mappedUsed;
+    /** Total capacity of mapped buffers. */
+    public final long mappedCapacity;
+
+    /**
+     * Every memory pool, heap and non-heap, e.g. "G1 Old Gen", "Metaspace" and "CodeHeap 'profiled nmethods'".
+     * In the order the JVM lists them.
+     */
+    public final List<Pool> pools;
+
+    /**
+     * null if NMT was not available or not collected.  Its categories cannot be modified.
+     */
+    @Nullable
+    public final Nmt nmt;
+
+    @SuppressWarnings("PMD.ExcessiveParameterList")
+    private MemorySnapshot(final long timestamp, final long nanoTime, final MemoryUsage heap,
+            final MemoryUsage nonHeap, final BufferPoolMXBean direct, final BufferPoolMXBean mapped,
+            final List<Pool> pools, @Nullable final Nmt nmt) {
+        this.timestamp = timestamp;
+        this.nanoTime = nanoTime;
+        this.heapUsed = heap.getUsed();
+        this.heapCommitted = heap.getCommitted();
+        this.heapMax = heap.getMax();
+        this.nonHeapUsed = nonHeap.getUsed();
+        this.nonHeapCommitted = nonHeap.getCommitted();
+        this.directCount = direct == null ? -1 : direct.getCount();
+        this.directUsed = direct == null ? -1 : direct.getMemoryUsed();
+        this.directCapacity = direct == null ? -1 : direct.getTotalCapacity();
+        this.mappedCount = mapped == null ? -1 : mapped.getCount();
+        this.mappedUsed = mapped == null ? -1 : mapped.getMemoryUsed();
+        this.mappedCapacity = mapped == null ? -1 : mapped.getTotalCapacity();
+        this.pools = pools;
+        this.nmt = nmt;
+    }
+
+    /**
+     * NMT requires JVM argument {@code -XX:NativeMemoryTracking=summary}; without it, {@link #nmt} will be null.
+     * @param includeNmt Whether to also collect NMT.
+     * @return A new snapshot.
+     */
+    static MemorySnapshot take(final boolean includeNmt) {
+        final long timestamp = System.currentTimeMillis();
+        final long nanoTime = System.nanoTime();
+        final List<Pool> pools = new ArrayList<>(POOLS.size());
+        for (final MemoryPoolMXBean bean : POOLS) {
+            if (bean.isValid()) {
+                pools.add(new Pool(bean.getName(), bean.getType() == MemoryType.HEAP, bean.getUsage()));
+            }
+        }
+        BufferPoolMXBean direct = null;
+        BufferPoolMXBean mapped = null;
+        for (final BufferPoolMXBean bean : BUFFERS) {
+            if (DIRECT.equals(bean.getName())) {
+                direct = bean;
+            } else if (MAPPED.equals(bean.getName())) {
+                mapped = bean;
+            }
+        }
+        return new MemorySnapshot(timestamp, nanoTime, MEMORY.getHeapMemoryUsage(), MEMORY.getNonHeapMemoryUsage(),
+                direct, mapped, Collections.unmodifiableList(pools), includeNmt ? unmodifiable(Nmt.get()) : null);
+    }
+
+    @Nullable
+    private static Nmt unmodifiable(@Nullable final Nmt nmt) {
+        if (nmt == null) {
+            return null;
+        }
+        return new Nmt(nmt.total, Collections.unmodifiableMap(new LinkedHashMap<>(nmt.categories)));
+    }
+
+    /**
+     * @param name Pool name, such as "Metaspace".
+     * @return The pool.  null if there is no such pool.
+     */
+    @Nullable
+    public Pool pool(final String name) {
+        for (final Pool pool : pools) {
+            if (pool.name.equals(name)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Usage of a single memory pool.  Byte fields are -1 if not available.
+     */
+    public static class Pool {
+        public final String name;
+        /** Whether this is a heap pool, as opposed to a non-heap pool such as "Metaspace". */
+        public final boolean heap;
+        public final long init;
+        public final long used;
+        public final long committed;
+        public final long max;
+
+        Pool(final String name, final boolean heap, @Nullable final MemoryUsage usage) {
+            this.name = name;
+            this.heap = heap;
+            this.init = usage == null ? -1 : usage.getInit();
+            this.used = usage == null ? -1 : usage.getUsed();
+            this.committed = usage == null ? -1 : usage.getCommitted();
+            this.max = usage == null ? -1 : usage.getMax();
+        }
+    }
+}
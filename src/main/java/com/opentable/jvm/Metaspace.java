@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metaspace usage, overall and per class loader, from the {@code VM.metaspace} and {@code VM.classloader_stats}
+ * diagnostic commands.  Where NMT's "Class" category only tells you metaspace is growing, comparing two
+ * {@link #classLoaders()} results with {@link #diff(List, List)} tells you which kind of class loader is leaking,
+ * without a heap dump.
+ */
+public final class Metaspace {
+    private static final Logger LOG = LoggerFactory.getLogger(Metaspace.class);
+
+    private Metaspace() {}
+
+    /**
+     * Like {@code jcmd VM.classloader_stats}.
+     * Logs a warning if there was an error getting or parsing the statistics.
+     * @return One entry per live class loader, in the order the JVM lists them.  null if there was an error.
+     */
+    @Nullable
+    public static List<Loader> classLoaders() {
+        final String stats = Dcmd.invoke("vmClassloaderStats");
+        if (stats == null) {
+            return null;
+        }
+        try {
+            return parseClassLoaderStats(stats);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("un-parseable class loader stats:\n{}", stats, e);
+            return null;
+        }
+    }
+
+    /**
+     * Like {@code jcmd VM.metaspace}.
+     * Logs a warning if there was an error getting or parsing the metaspace report.
+     * @return Overall metaspace usage.  null if there was an error.
+     */
+    @Nullable
+    public static Usage usage() {
+        final String report = Dcmd.invoke("vmMetaspace", "scale=1");
+        if (report == null) {
+            return null;
+        }
+        try {
+            return parseMetaspace(report);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("un-parseable metaspace report:\n{}", report, e);
+            return null;
+        }
+    }
+
+    /**
+     * Groups class loaders by type and compares the totals.
+     * @param before Earlier {@link #classLoaders()} result.
+     * @param after Later {@link #classLoaders()} result.
+     * @return One entry per loader type present in either, largest chunk growth first.
+     */
+    public static List<TypeDelta> diff(@Nonnull final List<Loader> before, @Nonnull final List<Loader> after) {
+        final Map<String, TypeTotals> was = byType(before);
+        final Map<String, TypeTotals> now = byType(after);
+        final List<TypeDelta> ret = new ArrayList<>();
+        final TypeTotals none = new TypeTotals();
+        now.forEach((type, totals) -> ret.add(new TypeDelta(type, was.getOrDefault(type, none), totals)));
+        was.forEach((type, totals) -> {
+            if (!now.containsKey(type)) {
+                ret.add(new TypeDelta(type, totals, none));
+            }
+        });
+        ret.sort(Comparator.comparingLong((TypeDelta d) -> d.chunkBytesDelta).reversed());
+        return ret;
+    }
+
+    /**
+     * @param stats {@code VM.classloader_stats} output to parse.
+     * @return Filled-out {@link Loader} instances.
+     * @throws IllegalArgumentException with human-readable error if string couldn't be parsed.
+     */
+    @VisibleForTesting
+    static List<Loader> parseClassLoaderStats(@Nonnull final String stats) {
+        final List<Loader> ret = new ArrayList<>();
+        boolean foundHeader = false;
+        int line = 0;
+        for (final String s : stats.split("\n")) {
+            ++line;
+            if (s.startsWith("ClassLoader")) {
+                foundHeader = true;
+                continue;
+            }
+            if (!foundHeader) {
+                continue;
+            }
+            final String trimmed = s.trim();
+            if (s.startsWith("0x")) {
+                // address, parent, CLD, classes, chunk bytes, block bytes, type (which may contain spaces)
+                final String[] fields = trimmed.split("\\s+", 7);
+                if (fields.length < 7) {
+                    throw new IllegalArgumentException(String.format("too few fields on line %d", line));
+                }
+                ret.add(new Loader(fields[0], fields[1], fields[6].trim(), parseLong(fields[3], line),
+                        parseLong(fields[4], line), parseLong(fields[5], line)));
+            } else if (!ret.isEmpty() && !trimmed.isEmpty() && Character.isDigit(trimmed.charAt(0))
+                    && trimmed.contains("+ ")) {
+                // "+ hidden classes" (JDK 15+) or "+ unsafe anonymous classes" line, belonging to the loader above.
+                final String[] fields = trimmed.split("\\s+", 4);
+                final Loader owner = ret.remove(ret.size() - 1);
+                ret.add(owner.withHidden(parseLong(fields[0], line), parseLong(fields[1], line),
+                        parseLong(fields[2], line)));
+            }
+        }
+        if (!foundHeader) {
+            throw new IllegalArgumentException("could not find header");
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    /**
+     * @param report {@code VM.metaspace scale=1} output to parse.
+     * @return Filled-out {@link Usage} instance.
+     * @throws IllegalArgumentException with human-readable error if string couldn't be parsed.
+     */
+    @VisibleForTesting
+    static Usage parseMetaspace(@Nonnull final String report) {
+        final String totalPrefix = "Total Usage";
+        long loaders = -1;
+        long classes = -1;
+        Space nonClass = null;
+        Space clazz = null;
+        Space both = null;
+        boolean inTotal = false;
+        for (final String s : report.split("\n")) {
+            final String trimmed = s.trim();
+            if (trimmed.startsWith(totalPrefix)) {
+                inTotal = true;
+                loaders = numberBefore(trimmed, " loader");
+                classes = numberBefore(trimmed, " class");
+                continue;
+            }
+            if (!inTotal) {
+                continue;
+            }
+            if (trimmed.isEmpty()) {
+                if (both != null || nonClass != null) {
+                    break;
+                }
+                continue;
+            }
+            if (trimmed.startsWith("Non-Class:")) {
+                nonClass = parseSpace(trimmed);
+            } else if (trimmed.startsWith("Class:")) {
+                clazz = parseSpace(trimmed);
+            } else if (trimmed.startsWith("Both:")) {
+                both = parseSpace(trimmed);
+            }
+        }
+        if (!inTotal) {
+            throw new IllegalArgumentException("could not find " + totalPrefix);
+        }
+        if (nonClass == null) {
+            throw new IllegalArgumentException("could not find Non-Class usage");
+        }
+        // Without compressed class pointers there is no class space, and no "Both".
+        if (both == null) {
+            both = nonClass;
+        }
+        return new Usage(loaders, classes, nonClass, clazz, both);
+    }
+
+    /**
+     * Parses e.g. "{@code Non-Class: 2 chunks, 4198400 bytes capacity, 135168 bytes ( 3%) committed, ...}".
+     */
+    private static Space parseSpace(final String line) {
+        long capacity = -1;
+        long committed = -1;
+        long used = -1;
+        for (final String segment : line.substring(line.indexOf(':') + 1).split(",")) {
+            final String s = segment.trim();
+            final int space = s.indexOf(' ');
+            if (space <= 0 || !Character.isDigit(s.charAt(0))) {
+                continue;
+            }
+            final long value;
+            try {
+                value = Long.parseLong(s.substring(0, space));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (s.endsWith("capacity")) {
+                capacity = value;
+            } else if (s.endsWith("committed")) {
+                committed = value;
+            } else if (s.endsWith("used")) {
+                used = value;
+            }
+        }
+        if (committed == -1 || used == -1) {
+            throw new IllegalArgumentException(String.format("could not parse committed and used from %s", line));
+        }
+        return new Space(capacity, committed, used);
+    }
+
+    private static long numberBefore(final String s, final String label) {
+        final int end = s.indexOf(label);
+        if (end == -1) {
+            return -1;
+        }
+        int start = end;
+        while (start > 0 && Character.isDigit(s.charAt(start - 1))) {
+            --start;
+        }
+        return start == end ? -1 : Long.parseLong(s.substring(start, end));
+    }
+
+    private static long parseLong(final String s, final int line) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("could not parse %s on line %d", s, line), e);
+        }
+    }
+
+    private static Map<String, TypeTotals> byType(final List<Loader> loaders) {
+        final Map<String, TypeTotals> ret = new LinkedHashMap<>();
+        for (final Loader l : loaders) {
+            final TypeTotals t = ret.computeIfAbsent(l.type, k -> new TypeTotals());
+            ++t.loaders;
+            t.classes += l.classes + l.hiddenClasses;
+            t.chunkBytes += l.chunkBytes + l.hiddenChunkBytes;
+            t.blockBytes += l.blockBytes + l.hiddenBlockBytes;
+        }
+        return ret;
+    }
+
+    /**
+     * A class loader's metaspace.  Byte fields are in bytes.
+     */
+    public static class Loader {
+        /** Address of the loader object; "0x0000000000000000" for the boot loader. */
+        public final String address;
+        public final String parent;
+        /** Class of the loader, e.g. "jdk.internal.loader.ClassLoaders$AppClassLoader", or "&lt;boot class loader&gt;". */
+        public final String type;
+        public final long classes;
+        /** Metaspace chunks allocated to the loader. */
+        public final long chunkBytes;
+        /** Metaspace blocks in use within those chunks. */
+        public final long blockBytes;
+        /** Hidden (or, before JDK 15, unsafe anonymous) classes, such as lambda forms, defined by the loader. */
+        public final long hiddenClasses;
+        public final long hiddenChunkBytes;
+        public final long hiddenBlockBytes;
+
+        @SuppressWarnings("PMD.ExcessiveParameterList")
+        Loader(final String address, final String parent, final String type, final long classes,
+                final long chunkBytes, final long blockBytes, final long hiddenClasses, final long hiddenChunkBytes,
+                final long hiddenBlockBytes) {
+            this.address = address;
+            this.parent = parent;
+            this.type = type;
+            this.classes = classes;
+            this.chunkBytes = chunkBytes;
+            this.blockBytes = blockBytes;
+            this.hiddenClasses = hiddenClasses;
+            this.hiddenChunkBytes = hiddenChunkBytes;
+            this.hiddenBlockBytes = hiddenBlockBytes;
+        }
+
+        Loader(final String address, final String parent, final String type, final long classes,
+                final long chunkBytes, final long blockBytes) {
+            this(address, parent, type, classes, chunkBytes, blockBytes, 0, 0, 0);
+        }
+
+        Loader withHidden(final long classes, final long chunkBytes, final long blockBytes) {
+            return new Loader(address, parent, type, this.classes, this.chunkBytes, this.blockBytes,
+                    classes, chunkBytes, blockBytes);
+        }
+    }
+
+    /**
+     * Overall metaspace usage.
+     */
+    public static class Usage {
+        /** Number of live class loaders; -1 if not reported. */
+        public final long loaders;
+        /** Number of loaded classes; -1 if not reported. */
+        public final long classes;
+        /** Metaspace proper: everything but the compressed class space. */
+        public final Space nonClass;
+        /** Compressed class space.  null if compressed class pointers are disabled. */
+        @Nullable
+        public final Space classSpace;
+        /** Both together. */
+        public final Space total;
+
+        Usage(final long loaders, final long classes, final Space nonClass, @Nullable final Space classSpace,
+                final Space total) {
+            this.loaders = loaders;
+            this.classes = classes;
+            this.nonClass = nonClass;
+            this.classSpace = classSpace;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Fields are in bytes; -1 if not reported.
+     */
+    public static class Space {
+        public final long capacity;
+        public final long committed;
+        public final long used;
+
+        Space(final long capacity, final long committed, final long used) {
+            this.capacity = capacity;
+            this.committed = committed;
+            this.used = used;
+        }
+    }
+
+    /**
+     * Change in the totals of one type of class loader between two {@link #classLoaders()} results.
+     * Hidden classes are included.
+     */
+    public static class TypeDelta {
+        public final String type;
+        public final long loaders;
+        public final long classes;
+        public final long chunkBytes;
+        public final long blockBytes;
+        public final long loadersDelta;
+        public final long classesDelta;
+        public final long chunkBytesDelta;
+        public final long blockBytesDelta;
+
+        TypeDelta(final String type, final TypeTotals before, final TypeTotals after) {
+            this.type = type;
+            this.loaders = after.loaders;
+            this.classes = after.classes;
+            this.chunkBytes = after.chunkBytes;
+            this.blockBytes = after.blockBytes;
+            this.loadersDelta = after.loaders - before.loaders;
+            this.classesDelta = after.classes - before.classes;
+            this.chunkBytesDelta = after.chunkBytes - before.chunkBytes;
+            this.blockBytesDelta = after.blockBytes - before.blockBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d loaders (%+d), %d classes (%+d), %s chunks (%+d B)", type, loaders,
+                    loadersDelta, classes, classesDelta, Memory.formatBytes(chunkBytes), chunkBytesDelta);
+        }
+    }
+
+    private static class TypeTotals {
+        private long loaders;
+        private long classes;
+        private long chunkBytes;
+        private long blockBytes;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.mogwee.executors.Executors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal HTTP server, built on the JDK's {@code com.sun.net.httpserver}, for scraping without a sidecar.
+ * Serves:
+ * <ul>
+ *     <li>{@code /metrics}: NMT, heap, memory pool, buffer pool, thread and GC figures in OpenMetrics text format.</li>
+ *     <li>{@code /threads}: thread dump, as {@link ThreadInfo#format()}.</li>
+ *     <li>{@code /class-histogram}: class histogram, including unreachable objects so as not to force a full GC.</li>
+ * </ul>
+ *
+ * <p>
+ * {@code /metrics} is served from a snapshot that is refreshed at most once per {@code maxAge}; concurrent scrapes
+ * of a stale snapshot wait for a single refresh.  The thread dump and class histogram are taken on demand, but only
+ * one at a time; a request that arrives while one is in progress gets 429 Too Many Requests.
+ * NMT figures require JVM argument {@code -XX:NativeMemoryTracking=summary}, and are left out otherwise.
+ */
+public class MetricsExporter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsExporter.class);
+
+    /**
+     * Default maximum age of the {@code /metrics} snapshot.
+     */
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofSeconds(5);
+
+    private static final String OPENMETRICS = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final int THREADS = 2;
+
+    private final HttpServer server;
+    private final ExecutorService exec;
+    private final long maxAgeNanos;
+    private final Object snapshotLock = new Object();
+    private final Lock onDemandLock = new ReentrantLock();
+    private volatile Snapshot snapshot;
+
+    private MetricsExporter(final HttpServer server, final Duration maxAge) {
+        this.server = server;
+        this.exec = Executors.newFixedThreadPool(THREADS, "metrics-exporter");
+        this.maxAgeNanos = maxAge.toNanos();
+        server.setExecutor(exec);
+        server.createContext("/metrics", ex -> serve(ex, OPENMETRICS, this::metrics));
+        server.createContext("/threads", ex -> serveOnDemand(ex, ThreadInfo::format));
+        server.createContext("/class-histogram", ex -> serveOnDemand(ex, Diagnostics::classHistogram));
+    }
+
+    /**
+     * Starts serving on the loopback interface only, since thread dumps and class histograms are served without
+     * authentication.  Uses {@link #DEFAULT_MAX_AGE}.  To listen on other interfaces, use
+     * {@link #start(InetSocketAddress, Duration)}.
+     * @param port Port to listen on; 0 for any free port.
+     * @return The running exporter.  Close it to stop serving.
+     * @throws IOException if the server could not be started.
+     */
+    public static MetricsExporter start(final int port) throws IOException {
+        return start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Starts serving.
+     * @param address Address to listen on; port 0 for any free port.
+     * @param maxAge Maximum age of the {@code /metrics} snapshot.
+     * @return The running exporter.  Close it to stop serving.
+     * @throws IOException if the server could not be started.
+     */
+    public static MetricsExporter start(@Nonnull final InetSocketAddress address, @Nonnull final Duration maxAge)
+            throws IOException {
+        if (maxAge.isNegative()) {
+            throw new IllegalArgumentException(String.format("maxAge must not be negative: %s", maxAge));
+        }
+        final MetricsExporter ret = new MetricsExporter(HttpServer.create(address, 0), maxAge);
+        ret.server.start();
+        LOG.info("serving metrics on {}", ret.getAddress());
+        return ret;
+    }
+
+    /**
+     * @return The address being listened on; useful to find the port when started with port 0.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops serving immediately.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        exec.shutdownNow();
+    }
+
+    private byte[] metrics() {
+        Snapshot s = snapshot;
+        if (s == null || System.nanoTime() - s.nanoTime > maxAgeNanos) {
+            synchronized (snapshotLock) {
+                s = snapshot;
+                if (s == null || System.nanoTime() - s.nanoTime > maxAgeNanos) {
+                    final StringBuilder sb = new StringBuilder(8192);
+                    try {
+                        encode(sb);
+                    } catch (IOException e) {
+                        throw new AssertionError("StringBuilder does not throw", e);
+                    }
+                    s = new Snapshot(System.nanoTime(), sb.toString().getBytes(StandardCharsets.UTF_8));
+                    snapshot = s;
+                }
+            }
+        }
+        return s.body;
+    }
+
+    /**
+     * Writes a complete OpenMetrics exposition, including the terminating {@code # EOF}.
+     */
+    @VisibleForTesting
+    static void encode(final Appendable out) throws IOException {
+        final MemorySnapshot mem = MemorySnapshot.take(true);
+        if (mem.nmt != null) {
+            NmtEncoder.openMetrics(mem.nmt, out);
+        }
+
+        NmtEncoder.metricHeader(out, "jvm_memory_used_bytes", NmtEncoder.GAUGE, "Memory used, by area.");
+        NmtEncoder.metric(out, "jvm_memory_used_bytes", "area", "heap", mem.heapUsed);
+        NmtEncoder.metric(out, "jvm_memory_used_bytes", "area", "nonheap", mem.nonHeapUsed);
+        NmtEncoder.metricHeader(out, "jvm_memory_committed_bytes", NmtEncoder.GAUGE, "Memory committed, by area.");
+        NmtEncoder.metric(out, "jvm_memory_committed_bytes", "area", "heap", mem.heapCommitted);
+        NmtEncoder.metric(out, "jvm_memory_committed_bytes", "area", "nonheap", mem.nonHeapCommitted);
+        NmtEncoder.metricHeader(out, "jvm_memory_max_bytes", NmtEncoder.GAUGE, "Maximum heap size; -1 if undefined.");
+        NmtEncoder.metric(out, "jvm_memory_max_bytes", "area", "heap", mem.heapMax);
+
+        NmtEncoder.metricHeader(out, "jvm_memory_pool_used_bytes", NmtEncoder.GAUGE, "Memory used, by pool.");
+        for (final MemorySnapshot.Pool pool : mem.pools) {
+            NmtEncoder.metric(out, "jvm_memory_pool_used_bytes", "pool", pool.name, pool.used);
+        }
+        NmtEncoder.metricHeader(out, "jvm_memory_pool_committed_bytes", NmtEncoder.GAUGE,
+                "Memory committed, by pool.");
+        for (final MemorySnapshot.Pool pool : mem.pools) {
+            NmtEncoder.metric(out, "jvm_memory_pool_committed_bytes", "pool", pool.name, pool.committed);
+        }
+        NmtEncoder.metricHeader(out, "jvm_memory_pool_max_bytes", NmtEncoder.GAUGE,
+                "Maximum size, by pool; -1 if undefined.");
+        for (final MemorySnapshot.Pool pool : mem.pools) {
+            NmtEncoder.metric(out, "jvm_memory_pool_max_bytes", "pool", pool.name, pool.max);
+        }
+
+        NmtEncoder.metricHeader(out, "jvm_buffer_pool_used_bytes", NmtEncoder.GAUGE, "Memory used by buffer pool.");
+        NmtEncoder.metric(out, "jvm_buffer_pool_used_bytes", "pool", "direct", mem.directUsed);
+        NmtEncoder.metric(out, "jvm_buffer_pool_used_bytes", "pool", "mapped", mem.mappedUsed);
+        NmtEncoder.metricHeader(out, "jvm_buffer_pool_capacity_bytes", NmtEncoder.GAUGE,
+                "Total capacity of buffers in buffer pool.");
+        NmtEncoder.metric(out, "jvm_buffer_pool_capacity_bytes", "pool", "direct", mem.directCapacity);
+        NmtEncoder.metric(out, "jvm_buffer_pool_capacity_bytes", "pool", "mapped", mem.mappedCapacity);
+        NmtEncoder.metricHeader(out, "jvm_buffer_pool_buffers", NmtEncoder.GAUGE, "Number of buffers in buffer pool.");
+        NmtEncoder.metric(out, "jvm_buffer_pool_buffers", "pool", "direct", mem.directCount);
+        NmtEncoder.metric(out, "jvm_buffer_pool_buffers", "pool", "mapped", mem.mappedCount);
+
+        encodeThreads(out, ManagementFactory.getThreadMXBean());
+        encodeGc(out, ManagementFactory.getGarbageCollectorMXBeans());
+        out.append("# EOF\n");
+    }
+
+    private static void encodeThreads(final Appendable out, final ThreadMXBean threads) throws IOException {
+        NmtEncoder.metricHeader(out, "jvm_threads", NmtEncoder.GAUGE, "Live threads.");
+        NmtEncoder.metric(out, "jvm_threads", null, null, threads.getThreadCount());
+        NmtEncoder.metricHeader(out, "jvm_threads_daemon", NmtEncoder.GAUGE, "Live daemon threads.");
+        NmtEncoder.metric(out, "jvm_threads_daemon", null, null, threads.getDaemonThreadCount());
+        NmtEncoder.metricHeader(out, "jvm_threads_peak", NmtEncoder.GAUGE, "Peak live threads since JVM start.");
+        NmtEncoder.metric(out, "jvm_threads_peak", null, null, threads.getPeakThreadCount());
+
+        // Depth 0: states only, no stack walking.
+        final Map<Thread.State, Integer> states = new EnumMap<>(Thread.State.class);
+        for (final Thread.State state : Thread.State.values()) {
+            states.put(state, 0);
+        }
+        for (final java.lang.management.ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            if (info != null) {
+                states.merge(info.getThreadState(), 1, Integer::sum);
+            }
+        }
+        NmtEncoder.metricHeader(out, "jvm_threads_state", NmtEncoder.GAUGE, "Live threads, by state.");
+        for (final Map.Entry<Thread.State, Integer> e : states.entrySet()) {
+            NmtEncoder.metric(out, "jvm_threads_state", "state", e.getKey().name(), (long) e.getValue());
+        }
+    }
+
+    private static void encodeGc(final Appendable out, final List<GarbageCollectorMXBean> gcs) throws IOException {
+        NmtEncoder.metricHeader(out, "jvm_gc_collections", NmtEncoder.COUNTER, "Collections, by collector.");
+        for (final GarbageCollectorMXBean gc : gcs) {
+            NmtEncoder.metric(out, "jvm_gc_collections_total", "gc", gc.getName(), gc.getCollectionCount());
+        }
+        NmtEncoder.metricHeader(out, "jvm_gc_collection_seconds", NmtEncoder.COUNTER,
+                "Approximate accumulated collection time, by collector.");
+        for (final GarbageCollectorMXBean gc : gcs) {
+            NmtEncoder.metric(out, "jvm_gc_collection_seconds_total", "gc", gc.getName(),
+                    gc.getCollectionTime() / 1000.0);
+        }
+    }
+
+    private void serveOnDemand(final HttpExchange ex, final Supplier<String> source) throws IOException {
+        if (!onDemandLock.tryLock()) {
+            respond(ex, 429, TEXT, "another diagnostic is in progress\n".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        try {
+            serve(ex, TEXT, () -> {
+                final String s = source.get();
+                return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+            });
+        } finally {
+            onDemandLock.unlock();
+        }
+    }
+
+    private static void serve(final HttpExchange ex, final String contentType, final Supplier<byte[]> body)
+            throws IOException {
+        try {
+            final String method = ex.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                respond(ex, 405, TEXT, "method not allowed\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (!ex.getRequestURI().getPath().equals(ex.getHttpContext().getPath())) {
+                respond(ex, 404, TEXT, "not found\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            final byte[] b;
+            try {
+                b = body.get();
+            } catch (RuntimeException e) {
+                LOG.warn("error serving {}", ex.getRequestURI(), e);
+                respond(ex, 500, TEXT, "internal error; see application log\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (b == null) {
+                respond(ex, 503, TEXT, "unavailable; see application log\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            respond(ex, 200, contentType, b);
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static void respond(final HttpExchange ex, final int status, final String contentType,
+            final byte[] body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", contentType);
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static final class Snapshot {
+        final long nanoTime;
+        final byte[] body;
+
+        Snapshot(final long nanoTime, final byte[] body) {
+            this.nanoTime = nanoTime;
+            this.body = body;
+        }
+    }
+}
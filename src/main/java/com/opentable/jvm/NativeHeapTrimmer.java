@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.time.Duration;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Returns freed native memory that glibc is holding on to in its malloc arenas back to the OS, using the
+ * {@code System.trim_native_heap} diagnostic command (JDK 17.0.9 and later, glibc only).
+ *
+ * <p>
+ * Trimming is only attempted when the gap between what the process has resident and what NMT accounts for (see
+ * {@link ProcessMemory#untrackedNative(Nmt)}) exceeds a threshold, and at most once per minimum interval: trimming walks
+ * all arenas while holding their locks, which stalls threads that malloc in the meantime.
+ * Requires JVM argument {@code -XX:NativeMemoryTracking=summary}, for the NMT half of the gap.
+ */
+public class NativeHeapTrimmer {
+    private static final Logger LOG = LoggerFactory.getLogger(NativeHeapTrimmer.class);
+    private static final String CMD = "systemTrimNativeHeap";
+    private static final String NOT_AVAILABLE = "Not available";
+
+    private final long threshold;
+    private final long minIntervalNanos;
+    private volatile boolean supported;
+    private long lastTrimNanos;
+    private boolean trimmed;
+
+    /**
+     * @param threshold Trim when untracked native memory exceeds this many bytes.
+     * @param minInterval Trim at most this often.
+     */
+    public NativeHeapTrimmer(final long threshold, final Duration minInterval) {
+        this.threshold = threshold;
+        this.minIntervalNanos = minInterval.toNanos();
+        this.supported = Dcmd.isSupported(CMD);
+        if (!supported) {
+            LOG.info("native heap trimming not supported by this JVM");
+        }
+    }
+
+    /**
+     * Whether this JVM supports trimming; i.e., is JDK 17.0.9 or later, running on glibc.
+     * @return false once a trim has told us that the platform does not support it.
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Checks the gap between resident and NMT-tracked memory and trims if it's too large, unless we trimmed recently.
+     * @return What the trim did.  null if no trim was done.
+     */
+    @Nullable
+    public synchronized Result maybeTrim() {
+        if (!supported) {
+            return null;
+        }
+        final long now = System.nanoTime();
+        if (!due(trimmed, lastTrimNanos, now, minIntervalNanos)) {
+            return null;
+        }
+        final Nmt nmt = Nmt.get();
+        final ProcessMemory before = ProcessMemory.get();
+        if (nmt == null || before == null) {
+            return null;
+        }
+        final long gap = before.untrackedNative(nmt);
+        if (gap < threshold) {
+            return null;
+        }
+        return trim(before, gap);
+    }
+
+    /**
+     * Schedules {@link #maybeTrim()} to run periodically, logging each trim.
+     * @param scheduler The scheduler on which to run.
+     * @param interval How often to check the gap.
+     * @return {@link DiagnosticScheduler.Task} that you can use to cancel the checks.
+     */
+    public DiagnosticScheduler.Task schedule(final DiagnosticScheduler scheduler, final Duration interval) {
+        return scheduler.schedule("native-heap-trimmer", this::maybeTrim, interval);
+    }
+
+    @VisibleForTesting
+    static boolean due(final boolean trimmed, final long lastTrimNanos, final long nowNanos,
+            final long minIntervalNanos) {
+        return !trimmed || nowNanos - lastTrimNanos >= minIntervalNanos;
+    }
+
+    @Nullable
+    private Result trim(final ProcessMemory before, final long gap) {
+        final long start = System.nanoTime();
+        final String out = Dcmd.invoke(CMD);
+        final long end = System.nanoTime();
+        trimmed = true;
+        lastTrimNanos = end;
+        if (out == null) {
+            return null;
+        }
+        if (out.contains(NOT_AVAILABLE)) {
+            LOG.info("native heap trimming not available: {}", out.trim());
+            supported = false;
+            return null;
+        }
+        final ProcessMemory after = ProcessMemory.get();
+        final long reclaimed = after == null ? -1 : resident(before) - resident(after);
+        final Result ret = new Result(gap, reclaimed, Duration.ofNanos(end - start));
+        LOG.info("trimmed native heap: {}", ret);
+        return ret;
+    }
+
+    private static long resident(final ProcessMemory m) {
+        return m.rss + Math.max(m.swap, 0);
+    }
+
+    /**
+     * Outcome of a trim.
+     */
+    public static class Result {
+        /** Untracked native memory before the trim, in bytes. */
+        public final long untrackedBefore;
+        /** Decrease in resident memory plus swap, in bytes; -1 if it could not be measured. */
+        public final long reclaimed;
+        /** How long the trim took. */
+        public final Duration duration;
+
+        Result(final long untrackedBefore, final long reclaimed, final Duration duration) {
+            this.untrackedBefore = untrackedBefore;
+            this.reclaimed = reclaimed;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("untracked %s before, reclaimed %s in %d ms",
+                    Memory.formatBytes(untrackedBefore),
+                    reclaimed < 0 ? "unknown" : Memory.formatBytes(reclaimed),
+                    duration.toMillis());
+        }
+    }
+}
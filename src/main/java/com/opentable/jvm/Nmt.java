@@ -24,7 +24,7 @@
 
 package com.opentable.jvm;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -69,7 +69,7 @@ public class Nmt {
      */
     public final Map<String, Usage> categories;
 
-    private Nmt(final Usage total, final Map<String, Usage> categories) {
+    Nmt(final Usage total, final Map<String, Usage> categories) {
         this.total = total;
         this.categories = categories;
     }
@@ -95,6 +95,25 @@ public class Nmt {
         return ret;
     }
 
+    /**
+     * Like {@link #invoke()}, but in another JVM, which must have been started with
+     * {@code -XX:NativeMemoryTracking=summary}.
+     * The warning that NMT is disabled is logged only once per connection.
+     * @param jvm The other JVM.
+     * @return JVM-formatted human-readable NMT summary.  null if there was an error getting the summary.
+     */
+    @Nullable
+    public static String invoke(@Nonnull final RemoteJvm jvm) {
+        final String ret = Dcmd.invoke(jvm.getConnection(), "vmNativeMemory", "summary");
+        if (NMT_DISABLED.equals(ret)) {
+            if (jvm.nmtDisabledDidWarn.compareAndSet(false, true)) {
+                LOG.warn("{}: {}", jvm, ret.trim());
+            }
+            return null;
+        }
+        return ret;
+    }
+
     /**
      * Produces simpler and more concise human-readable summary of NMT than the native human-readable output from the
      * JVM.
@@ -102,7 +121,13 @@ public class Nmt {
      */
     @Override
     public String toString() {
-        return new Formatter().toString();
+        final StringBuilder sb = new StringBuilder();
+        try {
+            NmtEncoder.table(this, sb);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+        return sb.toString();
     }
 
     /**
@@ -113,7 +138,21 @@ public class Nmt {
      */
     @Nullable
     static Nmt get() {
-        final String nmt = invoke();
+        return parseOrWarn(invoke());
+    }
+
+    /**
+     * @param jvm The other JVM.
+     * @return null if there was an error getting the summary.
+     * @see #invoke(RemoteJvm)
+     */
+    @Nullable
+    static Nmt get(@Nonnull final RemoteJvm jvm) {
+        return parseOrWarn(invoke(jvm));
+    }
+
+    @Nullable
+    private static Nmt parseOrWarn(@Nullable final String nmt) {
         if (nmt == null) {
             return null;
         }
@@ -249,45 +288,4 @@ public class Nmt {
             this.committed = committed;
         }
     }
-
-    private class Formatter {
-        @Override
-        public String toString() {
-            final int rows = categories.size() + 2;
-
-            final List<String> col1 = new ArrayList<>(rows);
-            col1.add("Name");
-            col1.add("Total");
-            col1.addAll(categories.keySet());
-            final int colWidth1 = maxLength(col1);
-
-            final List<String> col2 = new ArrayList<>(rows);
-            col2.add("Reserved");
-            col2.add(Memory.formatBytes(total.reserved));
-            categories.keySet().forEach(name -> col2.add(Memory.formatBytes(categories.get(name).reserved)));
-            final int colWidth2 = maxLength(col2);
-
-            final List<String> col3 = new ArrayList<>(rows);
-            col3.add("Committed");
-            col3.add(Memory.formatBytes(total.committed));
-            categories.keySet().forEach(name -> col3.add(Memory.formatBytes(categories.get(name).committed)));
-            final int colWidth3 = maxLength(col3);
-
-            final StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < rows; i++) {
-                sb.append(pad(col1, colWidth1, i)).append("  ");
-                sb.append(pad(col2, colWidth2, i)).append("  ");
-                sb.append(pad(col3, colWidth3, i)).append('\n');
-            }
-            return sb.toString();
-        }
-
-        private int maxLength(final List<String> list) {
-            return list.stream().mapToInt(String::length).max().getAsInt();
-        }
-
-        private String pad(final List<String> list, final int width, final int index) {
-            return String.format("%1$" + width + "s", list.get(index));
-        }
-    }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Writes {@link Nmt} in various formats straight into a caller-supplied {@link Appendable} or {@link ByteBuffer},
+ * without building intermediate strings or lists.
+ *
+ * <p>
+ * For repeated use, e.g. on every poll, reuse the same {@link StringBuilder} or {@link ByteBuffer}.
+ */
+public final class NmtEncoder {
+    private static final String NAME = "Name";
+    private static final String TOTAL = "Total";
+    private static final String RESERVED = "Reserved";
+    private static final String COMMITTED = "Committed";
+    private static final String SEPARATOR = "  ";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte BINARY_VERSION = 1;
+
+    static final String GAUGE = "gauge";
+    static final String COUNTER = "counter";
+
+    private NmtEncoder() {}
+
+    /**
+     * The human-readable table of {@link Nmt#toString()}.
+     * @param nmt What to encode.
+     * @param out Where to write.
+     * @throws IOException if {@code out} does.
+     */
+    public static void table(@Nonnull final Nmt nmt, @Nonnull final Appendable out) throws IOException {
+        int nameWidth = Math.max(NAME.length(), TOTAL.length());
+        int reservedWidth = Math.max(RESERVED.length(), ByteFormat.length(nmt.total.reserved));
+        int committedWidth = Math.max(COMMITTED.length(), ByteFormat.length(nmt.total.committed));
+        for (final Map.Entry<String, Nmt.Usage> e : nmt.categories.entrySet()) {
+            nameWidth = Math.max(nameWidth, e.getKey().length());
+            reservedWidth = Math.max(reservedWidth, ByteFormat.length(e.getValue().reserved));
+            committedWidth = Math.max(committedWidth, ByteFormat.length(e.getValue().committed));
+        }
+
+        pad(out, nameWidth - NAME.length()).append(NAME).append(SEPARATOR);
+        pad(out, reservedWidth - RESERVED.length()).append(RESERVED).append(SEPARATOR);
+        pad(out, committedWidth - COMMITTED.length()).append(COMMITTED).append('\n');
+        tableRow(out, TOTAL, nmt.total, nameWidth, reservedWidth, committedWidth);
+        for (final Map.Entry<String, Nmt.Usage> e : nmt.categories.entrySet()) {
+            tableRow(out, e.getKey(), e.getValue(), nameWidth, reservedWidth, committedWidth);
+        }
+    }
+
+    /**
+     * JSON object of the form
+     * <code>{"total":{"reserved":1,"committed":1},"categories":{"Java Heap":{"reserved":1,"committed":1},...}}</code>,
+     * in bytes.
+     * @param nmt What to encode.
+     * @param out Where to write.
+     * @throws IOException if {@code out} does.
+     */
+    public static void json(@Nonnull final Nmt nmt, @Nonnull final Appendable out) throws IOException {
+        out.append("{\"total\":");
+        jsonUsage(out, nmt.total);
+        out.append(",\"categories\":{");
+        boolean first = true;
+        for (final Map.Entry<String, Nmt.Usage> e : nmt.categories.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"');
+            escapeJson(out, e.getKey());
+            out.append("\":");
+            jsonUsage(out, e.getValue());
+        }
+        out.append("}}");
+    }
+
+    /**
+     * Prometheus / OpenMetrics text exposition: gauges {@code jvm_nmt_reserved_bytes} and
+     * {@code jvm_nmt_committed_bytes} with a {@code category} label, and {@code jvm_nmt_total_reserved_bytes} and
+     * {@code jvm_nmt_total_committed_bytes}.
+     * Does not write the terminating {@code # EOF} line, so the output can be combined with other metric families.
+     * @param nmt What to encode.
+     * @param out Where to write.
+     * @throws IOException if {@code out} does.
+     */
+    public static void openMetrics(@Nonnull final Nmt nmt, @Nonnull final Appendable out) throws IOException {
+        metricHeader(out, "jvm_nmt_total_reserved_bytes", GAUGE, "Native memory reserved, per NMT.");
+        metric(out, "jvm_nmt_total_reserved_bytes", null, null, nmt.total.reserved);
+        metricHeader(out, "jvm_nmt_total_committed_bytes", GAUGE, "Native memory committed, per NMT.");
+        metric(out, "jvm_nmt_total_committed_bytes", null, null, nmt.total.committed);
+        metricHeader(out, "jvm_nmt_reserved_bytes", GAUGE, "Native memory reserved, by NMT category.");
+        for (final Map.Entry<String, Nmt.Usage> e : nmt.categories.entrySet()) {
+            metric(out, "jvm_nmt_reserved_bytes", "category", e.getKey(), e.getValue().reserved);
+        }
+        metricHeader(out, "jvm_nmt_committed_bytes", GAUGE, "Native memory committed, by NMT category.");
+        for (final Map.Entry<String, Nmt.Usage> e : nmt.categories.entrySet()) {
+            metric(out, "jvm_nmt_committed_bytes", "category", e.getKey(), e.getValue().committed);
+        }
+    }
+
+    /**
+     * Compact binary form, decoded by {@link #decodeBinary(ByteBuffer)}.  Category names are written as ASCII;
+     * other characters become '?'.  Uses the buffer's byte order.
+     * @param nmt What to encode.
+     * @param buf Where to write, starting at its position.  See {@link #binarySize(Nmt)}.
+     * @throws BufferOverflowException if {@code buf} is too small.
+     */
+    public static void binary(@Nonnull final Nmt nmt, @Nonnull final ByteBuffer buf) {
+        buf.put(BINARY_VERSION);
+        buf.putInt(nmt.categories.size());
+        buf.putLong(nmt.total.reserved);
+        buf.putLong(nmt.total.committed);
+        for (final Map.Entry<String, Nmt.Usage> e : nmt.categories.entrySet()) {
+            final String name = e.getKey();
+            buf.putShort((short) name.length());
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                buf.put(c < 0x80 ? (byte) c : (byte) '?');
+            }
+            buf.putLong(e.getValue().reserved);
+            buf.putLong(e.getValue().committed);
+        }
+    }
+
+    /**
+     * @param nmt What would be encoded.
+     * @return Number of bytes {@link #binary(Nmt, ByteBuffer)} will write.
+     */
+    public static int binarySize(@Nonnull final Nmt nmt) {
+        int ret = 1 + 4 + 8 + 8;
+        for (final String name : nmt.categories.keySet()) {
+            ret += 2 + name.length() + 8 + 8;
+        }
+        return ret;
+    }
+
+    /**
+     * @param buf Output of {@link #binary(Nmt, ByteBuffer)}, starting at its position, in the same byte order.
+     * @return Decoded {@link Nmt}.
+     * @throws IllegalArgumentException if the data could not be decoded.
+     */
+    public static Nmt decodeBinary(@Nonnull final ByteBuffer buf) {
+        try {
+            final byte version = buf.get();
+            if (version != BINARY_VERSION) {
+                throw new IllegalArgumentException(String.format("unsupported version %d", version));
+            }
+            final int count = buf.getInt();
+            if (count < 0) {
+                throw new IllegalArgumentException(String.format("bad category count %d", count));
+            }
+            final Nmt.Usage total = new Nmt.Usage(buf.getLong(), buf.getLong());
+            final Map<String, Nmt.Usage> categories = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                final char[] name = new char[buf.getShort()];
+                for (int j = 0; j < name.length; j++) {
+                    name[j] = (char) buf.get();
+                }
+                categories.put(new String(name), new Nmt.Usage(buf.getLong(), buf.getLong()));
+            }
+            return new Nmt(total, categories);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("truncated NMT data", e);
+        }
+    }
+
+    /**
+     * Writes {@code # TYPE}, {@code # UNIT} and {@code # HELP} lines for a metric family.  The unit is taken from the
+     * name's suffix, {@code _bytes} or {@code _seconds}.
+     * @param type {@code gauge} or {@code counter}.  Counter sample names must end in {@code _total}.
+     */
+    static void metricHeader(final Appendable out, final String name, final String type, final String help)
+            throws IOException {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        if (name.endsWith("_bytes")) {
+            out.append("# UNIT ").append(name).append(" bytes\n");
+        } else if (name.endsWith("_seconds")) {
+            out.append("# UNIT ").append(name).append(" seconds\n");
+        }
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    /**
+     * Writes a sample line with at most one label.
+     * @param label null for no label, in which case {@code labelValue} is ignored.
+     */
+    static void metric(final Appendable out, final String name, @Nullable final String label,
+            @Nullable final String labelValue, final long value) throws IOException {
+        metricName(out, name, label, labelValue);
+        ByteFormat.appendLong(out, value);
+        out.append('\n');
+    }
+
+    /**
+     * Writes a sample line with at most one label.
+     * @param label null for no label, in which case {@code labelValue} is ignored.
+     */
+    static void metric(final Appendable out, final String name, @Nullable final String label,
+            @Nullable final String labelValue, final double value) throws IOException {
+        metricName(out, name, label, labelValue);
+        out.append(Double.toString(value));
+        out.append('\n');
+    }
+
+    /**
+     * Escapes a JSON string: backslashes, double quotes, and control characters, which JSON does not allow unescaped.
+     */
+    @VisibleForTesting
+    static void escapeJson(final Appendable out, final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Escapes an OpenMetrics label value: backslashes, double quotes and newlines, the only escapes the format has.
+     */
+    @VisibleForTesting
+    static void escapeLabel(final Appendable out, final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static void metricName(final Appendable out, final String name, @Nullable final String label,
+            @Nullable final String labelValue) throws IOException {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            escapeLabel(out, labelValue);
+            out.append("\"}");
+        }
+        out.append(' ');
+    }
+
+    private static void tableRow(final Appendable out, final String name, final Nmt.Usage usage, final int nameWidth,
+            final int reservedWidth, final int committedWidth) throws IOException {
+        pad(out, nameWidth - name.length()).append(name).append(SEPARATOR);
+        pad(out, reservedWidth - ByteFormat.length(usage.reserved));
+        ByteFormat.append(out, usage.reserved);
+        out.append(SEPARATOR);
+        pad(out, committedWidth - ByteFormat.length(usage.committed));
+        ByteFormat.append(out, usage.committed);
+        out.append('\n');
+    }
+
+    private static Appendable pad(final Appendable out, final int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            out.append(' ');
+        }
+        return out;
+    }
+
+    private static void jsonUsage(final Appendable out, final Nmt.Usage usage) throws IOException {
+        out.append("{\"reserved\":");
+        ByteFormat.appendLong(out, usage.reserved);
+        out.append(",\"committed\":");
+        ByteFormat.appendLong(out, usage.committed);
+        out.append('}');
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Parsed NMT over JMX, so that JMX collectors and jconsole can read native memory without each poll running the
+ * {@code VM.native_memory} diagnostic command.
+ * Values are refreshed lazily, at most once per the interval given to
+ * {@link Memory#registerNmtMXBean(java.time.Duration)}, however often they are read.
+ * Requires JVM argument {@code -XX:NativeMemoryTracking=summary}; without it, totals are -1, {@link #getTotal()} is
+ * null and {@link #getCategories()} is empty.
+ */
+public interface NmtMXBean {
+    /**
+     * Name under which {@link Memory#registerNmtMXBean(java.time.Duration)} registers the bean.
+     */
+    String OBJECT_NAME = "com.opentable.jvm:type=Nmt";
+
+    /**
+     * @return {@link Nmt#total} reserved bytes.  -1 if not available.
+     */
+    long getTotalReserved();
+
+    /**
+     * @return {@link Nmt#total} committed bytes.  -1 if not available.
+     */
+    long getTotalCommitted();
+
+    /**
+     * @return {@link Nmt#total}, which JMX clients see as {@link CompositeData}.  null if not available.
+     */
+    @Nullable
+    Usage getTotal();
+
+    /**
+     * @return {@link Nmt#categories}, which JMX clients see as {@link javax.management.openmbean.TabularData} of
+     * {@link CompositeData} rows keyed by category name.
+     */
+    Map<String, Usage> getCategories();
+
+    /**
+     * @param name Category name, e.g. "Java Heap".
+     * @return The category's usage.  null if there is no such category, or NMT is not available.
+     */
+    @Nullable
+    Usage category(String name);
+
+    /**
+     * @return Wall-clock time of the last refresh, in milliseconds since the epoch.  -1 if never refreshed.
+     */
+    long getLastRefreshTime();
+
+    /**
+     * @return Minimum interval between refreshes.
+     */
+    long getRefreshIntervalMillis();
+
+    /**
+     * Like {@link Nmt.Usage}, but with getters, so that the MXBean framework can map it to {@link CompositeData} with
+     * items {@code reserved} and {@code committed}.
+     */
+    final class Usage {
+        private final long reserved;
+        private final long committed;
+
+        public Usage(final long reserved, final long committed) {
+            this.reserved = reserved;
+            this.committed = committed;
+        }
+
+        /**
+         * Used by the MXBean framework to rebuild usage from {@link CompositeData}, as for
+         * {@link javax.management.JMX#newMXBeanProxy}.
+         * @param cd Composite data with {@code long} items {@code reserved} and {@code committed}.
+         * @return Usage.
+         */
+        public static Usage from(final CompositeData cd) {
+            return new Usage((Long) cd.get("reserved"), (Long) cd.get("committed"));
+        }
+
+        /**
+         * @return Reserved bytes.
+         */
+        public long getReserved() {
+            return reserved;
+        }
+
+        /**
+         * @return Committed bytes.
+         */
+        public long getCommitted() {
+            return committed;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Registered by {@link Memory#registerNmtMXBean(java.time.Duration)}.
+ */
+class NmtMXBeanImpl implements NmtMXBean {
+    private final Duration interval;
+    private long lastRefreshNanos;
+    private volatile long lastRefreshTime = -1;
+    private Nmt nmt;
+    private Map<String, Usage> categories = Collections.emptyMap();
+
+    NmtMXBeanImpl(final Duration interval) {
+        this.interval = interval;
+    }
+
+    @Override
+    public long getTotalReserved() {
+        final Nmt n = refresh();
+        return n == null ? -1 : n.total.reserved;
+    }
+
+    @Override
+    public long getTotalCommitted() {
+        final Nmt n = refresh();
+        return n == null ? -1 : n.total.committed;
+    }
+
+    @Nullable
+    @Override
+    public Usage getTotal() {
+        final Nmt n = refresh();
+        return n == null ? null : new Usage(n.total.reserved, n.total.committed);
+    }
+
+    @Override
+    public synchronized Map<String, Usage> getCategories() {
+        refresh();
+        return categories;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Usage category(final String name) {
+        refresh();
+        return categories.get(name);
+    }
+
+    @Override
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+
+    @Override
+    public long getRefreshIntervalMillis() {
+        return interval.toMillis();
+    }
+
+    /**
+     * Failures are remembered as well, so that with NMT off we don't retry on every read.
+     * @return The current NMT, refreshing it first if it is older than the interval.  null if not available.
+     */
+    @Nullable
+    private synchronized Nmt refresh() {
+        final long now = System.nanoTime();
+        if (lastRefreshTime != -1 && now - lastRefreshNanos < interval.toNanos()) {
+            return nmt;
+        }
+        final Nmt n = Memory.getNmt();
+        final Map<String, Usage> c = new LinkedHashMap<>();
+        if (n != null) {
+            n.categories.forEach((name, u) -> c.put(name, new Usage(u.reserved, u.committed)));
+        }
+        nmt = n;
+        categories = Collections.unmodifiableMap(c);
+        lastRefreshNanos = now;
+        lastRefreshTime = System.currentTimeMillis();
+        return n;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the HotSpot performance counters (the ones {@code jstat} and {@code jcmd PerfCounter.print} show) straight out
+ * of this JVM's memory-mapped {@code hsperfdata_<user>/<pid>} file.
+ *
+ * <p>
+ * Unlike the MBeans and diagnostic commands, reading a counter does not go through JMX, does not need a safepoint and
+ * does not allocate: it is a single read from shared memory that the VM keeps up to date.  That makes it cheap enough
+ * to poll GC, safepoint, class-loading and JIT counters every second.
+ *
+ * <p>
+ * The file does not exist if the JVM was started with {@code -XX:-UsePerfData} or {@code -XX:+PerfDisableSharedMem};
+ * in that case {@link #open()} returns null.
+ */
+public final class PerfCounters {
+    private static final Logger LOG = LoggerFactory.getLogger(PerfCounters.class);
+
+    public static final String HRT_FREQUENCY = "sun.os.hrt.frequency";
+    public static final String SAFEPOINTS = "sun.rt.safepoints";
+    /** In ticks of {@link #HRT_FREQUENCY}. */
+    public static final String SAFEPOINT_TIME = "sun.rt.safepointTime";
+    /** In ticks of {@link #HRT_FREQUENCY}. */
+    public static final String SAFEPOINT_SYNC_TIME = "sun.rt.safepointSyncTime";
+    public static final String LOADED_CLASSES = "java.cls.loadedClasses";
+    public static final String SHARED_LOADED_CLASSES = "java.cls.sharedLoadedClasses";
+    public static final String UNLOADED_CLASSES = "java.cls.unloadedClasses";
+    public static final String TOTAL_COMPILES = "sun.ci.totalCompiles";
+    /** In ticks of {@link #HRT_FREQUENCY}. */
+    public static final String TOTAL_COMPILE_TIME = "java.ci.totalTime";
+
+    /**
+     * The magic number is always written big-endian, regardless of the byte order of the rest of the file.
+     */
+    private static final int MAGIC = 0xcafec0c0;
+    private static final int SUPPORTED_MAJOR_VERSION = 2;
+    private static final char TYPE_LONG = 'J';
+    private static final char TYPE_BYTE = 'B';
+
+    // Offsets into the prologue.
+    private static final int PROLOGUE_BYTE_ORDER = 4;
+    private static final int PROLOGUE_MAJOR_VERSION = 5;
+    private static final int PROLOGUE_ACCESSIBLE = 7;
+    private static final int PROLOGUE_ENTRY_OFFSET = 24;
+    private static final int PROLOGUE_NUM_ENTRIES = 28;
+    private static final int PROLOGUE_SIZE = 32;
+
+    // Offsets into each entry's header.
+    private static final int ENTRY_LENGTH = 0;
+    private static final int ENTRY_NAME_OFFSET = 4;
+    private static final int ENTRY_VECTOR_LENGTH = 8;
+    private static final int ENTRY_DATA_TYPE = 12;
+    private static final int ENTRY_DATA_OFFSET = 16;
+
+    /**
+     * We warn only once to avoid cluttering the logs, as with {@link Nmt#invoke()}.
+     */
+    private static boolean MISSING_DID_WARN = false;
+
+    private final ByteBuffer buf;
+    private final long ticksPerSecond;
+    /**
+     * Entry count at the time {@link #entries} was built.  The VM may add counters later.
+     */
+    private int indexedEntries;
+    private volatile Map<String, Counter> entries;
+
+    private PerfCounters(final ByteBuffer buf) {
+        this.buf = buf;
+        index();
+        final Counter freq = entries.get(HRT_FREQUENCY);
+        this.ticksPerSecond = freq == null ? 0 : freq.get();
+    }
+
+    /**
+     * Logs a warning if the performance data file could not be found or read.
+     * This warning will be logged only once per process instance.
+     * @return Counters of this JVM.  null if the JVM does not publish them.
+     */
+    @Nullable
+    public static PerfCounters open() {
+        final Path path = getDefaultPath();
+        if (!Files.isReadable(path)) {
+            if (!MISSING_DID_WARN) {
+                LOG.warn("no performance data at {}; is -XX:-UsePerfData or -XX:+PerfDisableSharedMem set?", path);
+                MISSING_DID_WARN = true;
+            }
+            return null;
+        }
+        return open(path);
+    }
+
+    /**
+     * Logs a warning if the file could not be read or parsed.
+     * @param path A HotSpot performance data file; possibly of another JVM.
+     * @return Counters in the file.  null if there was an error reading it.
+     */
+    @Nullable
+    public static PerfCounters open(final Path path) {
+        final ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException e) {
+            LOG.warn("error mapping performance data {}", path, e);
+            return null;
+        }
+        try {
+            return parse(buf);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("un-parseable performance data {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param buf Contents of a performance data file.  Will not be modified, and must not be modified by the caller.
+     * @return Filled-out {@link PerfCounters} instance.
+     * @throws IllegalArgumentException with human-readable error if the data couldn't be parsed.
+     */
+    @VisibleForTesting
+    static PerfCounters parse(final ByteBuffer buf) {
+        if (buf.capacity() < PROLOGUE_SIZE) {
+            throw new IllegalArgumentException(String.format("too short: %d bytes", buf.capacity()));
+        }
+        final int magic = buf.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(0);
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException(String.format("bad magic number %x", magic));
+        }
+        final int major = buf.get(PROLOGUE_MAJOR_VERSION);
+        if (major != SUPPORTED_MAJOR_VERSION) {
+            throw new IllegalArgumentException(String.format("unsupported major version %d", major));
+        }
+        if (buf.get(PROLOGUE_ACCESSIBLE) == 0) {
+            throw new IllegalArgumentException("not yet accessible");
+        }
+        final ByteOrder order = buf.get(PROLOGUE_BYTE_ORDER) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        return new PerfCounters(buf.duplicate().order(order));
+    }
+
+    /**
+     * Does not allocate.
+     * @param name Counter name, such as {@link #SAFEPOINTS}.
+     * @return The current value of the counter.  -1 if there is no such numeric counter.
+     */
+    public long get(final String name) {
+        final Counter c = counter(name);
+        return c == null ? -1 : c.get();
+    }
+
+    /**
+     * For repeated reads, prefer keeping hold of the returned {@link Counter}.
+     * @param name Counter name, such as {@link #SAFEPOINTS}.
+     * @return Handle to the counter.  null if there is no such counter.
+     */
+    @Nullable
+    public Counter counter(final String name) {
+        Counter ret = entries.get(name);
+        if (ret == null && buf.getInt(PROLOGUE_NUM_ENTRIES) != indexedEntries) {
+            index();
+            ret = entries.get(name);
+        }
+        return ret;
+    }
+
+    /**
+     * Allocates the returned string.
+     * @param name Name of a string counter, such as {@code sun.gc.collector.0.name}.
+     * @return The string.  null if there is no such string counter.
+     */
+    @Nullable
+    public String getString(final String name) {
+        final Counter c = counter(name);
+        if (c == null || c.type != TYPE_BYTE) {
+            return null;
+        }
+        int len = 0;
+        while (len < c.vectorLength && buf.get(c.dataOffset + len) != 0) {
+            ++len;
+        }
+        final byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buf.get(c.dataOffset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Names of all counters currently published.
+     */
+    public Set<String> names() {
+        if (buf.getInt(PROLOGUE_NUM_ENTRIES) != indexedEntries) {
+            index();
+        }
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param ticks A time counter value, such as that of {@link #SAFEPOINT_TIME}.
+     * @return The value in nanoseconds.
+     */
+    public long ticksToNanos(final long ticks) {
+        if (ticksPerSecond == 0 || ticksPerSecond == TimeUnit.SECONDS.toNanos(1)) {
+            return ticks;
+        }
+        return (long) (ticks * ((double) TimeUnit.SECONDS.toNanos(1) / ticksPerSecond));
+    }
+
+    @Nonnull
+    private static Path getDefaultPath() {
+        // HotSpot always uses /tmp on Unix-likes, regardless of java.io.tmpdir.
+        final String user = System.getProperty("user.name");
+        return Paths.get(Memory.DEFAULT_TMP_PATH, "hsperfdata_" + user, Long.toString(ProcessHandle.current().pid()));
+    }
+
+    private synchronized void index() {
+        final int num = buf.getInt(PROLOGUE_NUM_ENTRIES);
+        final Map<String, Counter> map = new HashMap<>(num * 2);
+        int offset = buf.getInt(PROLOGUE_ENTRY_OFFSET);
+        for (int i = 0; i < num; i++) {
+            if (offset < PROLOGUE_SIZE || offset + ENTRY_DATA_OFFSET + 4 > buf.capacity()) {
+                throw new IllegalArgumentException(String.format("entry %d out of bounds at %d", i, offset));
+            }
+            final int length = buf.getInt(offset + ENTRY_LENGTH);
+            if (length <= 0) {
+                throw new IllegalArgumentException(String.format("entry %d has bad length %d", i, length));
+            }
+            final Counter c = new Counter(
+                    readName(offset + buf.getInt(offset + ENTRY_NAME_OFFSET)),
+                    (char) buf.get(offset + ENTRY_DATA_TYPE),
+                    buf.getInt(offset + ENTRY_VECTOR_LENGTH),
+                    offset + buf.getInt(offset + ENTRY_DATA_OFFSET));
+            map.put(c.name, c);
+            offset += length;
+        }
+        indexedEntries = num;
+        entries = map;
+    }
+
+    private String readName(final int offset) {
+        int end = offset;
+        while (end < buf.capacity() && buf.get(end) != 0) {
+            ++end;
+        }
+        final byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A single counter.  Reads go straight to the shared memory.
+     */
+    public final class Counter {
+        private final String name;
+        private final char type;
+        private final int vectorLength;
+        private final int dataOffset;
+
+        private Counter(final String name, final char type, final int vectorLength, final int dataOffset) {
+            this.name = name;
+            this.type = type;
+            this.vectorLength = vectorLength;
+            this.dataOffset = dataOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Does not allocate.
+         * @return The current value.  -1 if this is not a numeric counter.
+         */
+        public long get() {
+            if (type != TYPE_LONG || vectorLength != 0) {
+                return -1;
+            }
+            return buf.getLong(dataOffset);
+        }
+    }
+}
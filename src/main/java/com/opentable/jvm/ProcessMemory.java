@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process memory as the kernel sees it, from {@code /proc/self/status} and {@code /proc/self/smaps_rollup} (or the
+ * full {@code /proc/self/smaps}).  Linux only.
+ *
+ * <p>
+ * This is the memory the container runtime charges us for, and it regularly disagrees with {@link Nmt}; mostly
+ * because of glibc malloc arenas and native libraries that NMT doesn't see.  See {@link #untrackedNative(Nmt)}.
+ *
+ * <p>
+ * Fields are in bytes, and are -1 if the kernel did not report them.
+ */
+public class ProcessMemory {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessMemory.class);
+    private static final Path PROC_SELF = Paths.get("/proc/self");
+    private static final long K = 1024;
+
+    /**
+     * We warn only once to avoid cluttering the logs, e.g., on non-Linux hosts.
+     */
+    private static boolean MISSING_DID_WARN = false;
+
+    /** Resident set size; {@code VmRSS}. */
+    public final long rss;
+    /** Peak resident set size; {@code VmHWM}. */
+    public final long rssPeak;
+    /** Resident anonymous memory; {@code RssAnon}.  Heap, thread stacks, malloc arenas, etc. */
+    public final long rssAnon;
+    /** Resident file-backed memory; {@code RssFile}.  Code of the JVM and native libraries, mapped files, etc. */
+    public final long rssFile;
+    /** Resident shared memory; {@code RssShmem}. */
+    public final long rssShmem;
+    /** Swapped-out memory; {@code VmSwap}. */
+    public final long swap;
+    /** Proportional set size, from smaps. */
+    public final long pss;
+    /** Anonymous memory, from smaps. */
+    public final long anonymous;
+    /** Anonymous memory backed by transparent huge pages, from smaps. */
+    public final long anonHugePages;
+    /** Private dirty memory, from smaps. */
+    public final long privateDirty;
+
+    @SuppressWarnings("PMD.ExcessiveParameterList")
+    private ProcessMemory(final long rss, final long rssPeak, final long rssAnon, final long rssFile,
+            final long rssShmem, final long swap, final long pss, final long anonymous, final long anonHugePages,
+            final long privateDirty) {
+        this.rss = rss;
+        this.rssPeak = rssPeak;
+        this.rssAnon = rssAnon;
+        this.rssFile = rssFile;
+        this.rssShmem = rssShmem;
+        this.swap = swap;
+        this.pss = pss;
+        this.anonymous = anonymous;
+        this.anonHugePages = anonHugePages;
+        this.privateDirty = privateDirty;
+    }
+
+    /**
+     * Reads {@code /proc/self/status} and {@code /proc/self/smaps_rollup}.
+     * Logs a warning if there was an error reading them.
+     * This warning will be logged only once per process instance if they do not exist.
+     * @return null if there was an error reading the process memory.
+     */
+    @Nullable
+    public static ProcessMemory get() {
+        return get(PROC_SELF, false);
+    }
+
+    /**
+     * Like {@link #get()}.
+     * @param fullSmaps Whether to sum the full {@code /proc/self/smaps}, rather than using {@code smaps_rollup}.
+     * Needed on kernels before 4.14, which lack {@code smaps_rollup}; expensive for processes with many mappings.
+     * @return null if there was an error reading the process memory.
+     */
+    @Nullable
+    public static ProcessMemory get(final boolean fullSmaps) {
+        return get(PROC_SELF, fullSmaps);
+    }
+
+    @VisibleForTesting
+    @Nullable
+    static ProcessMemory get(final Path procSelf, final boolean fullSmaps) {
+        final String status;
+        try {
+            status = read(procSelf.resolve("status"));
+        } catch (NoSuchFileException e) {
+            if (!MISSING_DID_WARN) {
+                LOG.warn("{} does not exist; process memory only available on Linux", e.getFile());
+                MISSING_DID_WARN = true;
+            }
+            return null;
+        } catch (IOException e) {
+            LOG.warn("error reading process status", e);
+            return null;
+        }
+        String smaps = null;
+        try {
+            smaps = read(procSelf.resolve(fullSmaps ? "smaps" : "smaps_rollup"));
+        } catch (NoSuchFileException e) {
+            LOG.debug("{} does not exist; smaps fields will not be available", e.getFile());
+        } catch (IOException e) {
+            LOG.warn("error reading smaps", e);
+        }
+        return parse(status, smaps);
+    }
+
+    /**
+     * @param status Contents of {@code /proc/self/status}.
+     * @param smaps Contents of {@code /proc/self/smaps_rollup} or {@code /proc/self/smaps}.  Values are summed over
+     * all mappings.  May be null, in which case smaps fields will be -1.
+     * @return Filled-out {@link ProcessMemory} instance.
+     */
+    @VisibleForTesting
+    static ProcessMemory parse(@Nonnull final String status, @Nullable final String smaps) {
+        return new ProcessMemory(
+                sumKb(status, "VmRSS"),
+                sumKb(status, "VmHWM"),
+                sumKb(status, "RssAnon"),
+                sumKb(status, "RssFile"),
+                sumKb(status, "RssShmem"),
+                sumKb(status, "VmSwap"),
+                sumKb(smaps, "Pss"),
+                sumKb(smaps, "Anonymous"),
+                sumKb(smaps, "AnonHugePages"),
+                sumKb(smaps, "Private_Dirty"));
+    }
+
+    /**
+     * Native memory the JVM is using but NMT does not know about: malloc arena overhead and fragmentation, native
+     * libraries' allocations, etc.  Computed as resident anonymous memory plus swap, less NMT's committed total.
+     * Committed Java heap that has not been touched yet is not resident, so this is an underestimate unless the heap
+     * is pre-touched ({@code -XX:+AlwaysPreTouch}) or fully used; it can even come out negative.
+     * @param nmt The latest NMT, e.g., from {@link Memory#getNmt()}.
+     * @return Untracked native memory in bytes.
+     */
+    public long untrackedNative(@Nonnull final Nmt nmt) {
+        final long resident = rssAnon == -1 ? rss : rssAnon;
+        return resident + Math.max(swap, 0) - nmt.total.committed;
+    }
+
+    /**
+     * Sums all "{@code key:   123 kB}" lines, without regular expressions or substrings.
+     * @return The sum in bytes.  -1 if there were no such lines.
+     */
+    private static long sumKb(@Nullable final String s, final String key) {
+        if (s == null) {
+            return -1;
+        }
+        long sum = -1;
+        final int len = s.length();
+        int line = 0;
+        while (line < len) {
+            int eol = s.indexOf('\n', line);
+            if (eol == -1) {
+                eol = len;
+            }
+            final int colon = line + key.length();
+            if (colon < eol && s.charAt(colon) == ':' && s.startsWith(key, line)) {
+                int i = colon + 1;
+                while (i < eol && Character.isWhitespace(s.charAt(i))) {
+                    ++i;
+                }
+                long value = 0;
+                boolean digits = false;
+                while (i < eol && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                    value = value * 10 + (s.charAt(i) - '0');
+                    digits = true;
+                    ++i;
+                }
+                if (digits) {
+                    sum = Math.max(sum, 0) + value * K;
+                }
+            }
+            line = eol + 1;
+        }
+        return sum;
+    }
+
+    private static String read(final Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection to another JVM on the same host, for running the same diagnostics on it as we do locally; e.g.,
+ * {@link Memory#getNmt(RemoteJvm)} or {@link ThreadInfo#format(RemoteJvm)}.
+ *
+ * <p>
+ * Attaches with the Attach API ({@code com.sun.tools.attach}), which requires the target to run as the same user,
+ * asks the target to start its local JMX management agent, and then detaches, keeping only the JMX connection.
+ * Attaching costs tens to hundreds of milliseconds, so for repeated collection keep connections open, e.g. with
+ * {@link RemoteJvmPool}.
+ */
+public final class RemoteJvm implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteJvm.class);
+
+    private final String pid;
+    private final JMXConnector connector;
+    private final MBeanServerConnection connection;
+    private volatile boolean broken;
+
+    /**
+     * See {@link Nmt#invoke(RemoteJvm)}.  Atomic, since a pooled connection is used from several threads.
+     */
+    final AtomicBoolean nmtDisabledDidWarn = new AtomicBoolean();
+
+    private RemoteJvm(final String pid, final JMXConnector connector) throws IOException {
+        this.pid = pid;
+        this.connector = connector;
+        this.connection = connector.getMBeanServerConnection();
+        connector.addConnectionNotificationListener((notification, handback) -> {
+            final String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+                broken = true;
+            }
+        }, null, null);
+    }
+
+    /**
+     * @param pid Process ID of the target JVM.
+     * @return Open connection.  Close it when done.
+     * @throws IOException if the target could not be attached to or connected to, e.g. because it does not exist,
+     * runs as another user, or was started with {@code -XX:+DisableAttachMechanism}.
+     */
+    public static RemoteJvm attach(@Nonnull final String pid) throws IOException {
+        final VirtualMachine vm;
+        try {
+            vm = VirtualMachine.attach(pid);
+        } catch (AttachNotSupportedException e) {
+            throw new IOException(String.format("cannot attach to JVM %s", pid), e);
+        }
+        final String address;
+        try {
+            address = vm.startLocalManagementAgent();
+        } finally {
+            vm.detach();
+        }
+        final JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(address));
+        try {
+            return new RemoteJvm(pid, connector);
+        } catch (IOException e) {
+            connector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Process IDs of the other JVMs on this host that are visible to the Attach API.
+     */
+    public static List<String> list() {
+        final String self = Long.toString(ProcessHandle.current().pid());
+        final List<String> ret = new ArrayList<>();
+        for (final VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+            if (!vmd.id().equals(self)) {
+                ret.add(vmd.id());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return Process ID of the target JVM.
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * @return Whether the connection has failed or been closed.  A broken connection will not recover; attach again.
+     */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Closes the connection.  Logs a warning if there was an error doing so.
+     */
+    @Override
+    public void close() {
+        broken = true;
+        try {
+            connector.close();
+        } catch (IOException e) {
+            LOG.warn("error closing connection to JVM {}", pid, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JVM " + pid;
+    }
+
+    MBeanServerConnection getConnection() {
+        return connection;
+    }
+}
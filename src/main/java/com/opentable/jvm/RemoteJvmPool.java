@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import com.mogwee.executors.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps {@link RemoteJvm} connections open across polls, and collects from several JVMs in parallel.
+ *
+ * <p>
+ * E.g., to gather NMT from every other JVM on the host:
+ * <pre>{@code
+ * try (RemoteJvmPool pool = new RemoteJvmPool(4, Duration.ofSeconds(10))) {
+ *     Map<String, Nmt> nmts = pool.collect(RemoteJvm.list(), Memory::getNmt);
+ * }
+ * }</pre>
+ */
+public class RemoteJvmPool implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteJvmPool.class);
+
+    private final Map<String, RemoteJvm> jvms = new ConcurrentHashMap<>();
+    private final ExecutorService exec;
+    private final ScheduledExecutorService timer;
+    private final Duration timeout;
+
+    /**
+     * @param parallelism How many JVMs to collect from at once.
+     * @param timeout How long to wait for each JVM, including attaching to it if necessary, counted from when
+     * collection from it starts.
+     */
+    public RemoteJvmPool(final int parallelism, @Nonnull final Duration timeout) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format("parallelism must be at least 1: %d", parallelism));
+        }
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException(String.format("timeout must be positive: %s", timeout));
+        }
+        this.exec = Executors.newFixedThreadPool(parallelism, "remote-jvm-pool");
+        this.timer = Executors.newSingleThreadScheduledExecutor("remote-jvm-pool-timeout");
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param pid Process ID of the target JVM.
+     * @return Pooled connection, attaching first if there is none or the pooled one is broken.  Do not close it;
+     * use {@link #evict(String)} instead.
+     * @throws IOException if the target could not be attached to.
+     */
+    public RemoteJvm get(@Nonnull final String pid) throws IOException {
+        final RemoteJvm pooled = jvms.get(pid);
+        if (pooled != null) {
+            if (!pooled.isBroken()) {
+                return pooled;
+            }
+            jvms.remove(pid, pooled);
+            pooled.close();
+        }
+        final RemoteJvm attached = RemoteJvm.attach(pid);
+        final RemoteJvm raced = jvms.putIfAbsent(pid, attached);
+        if (raced != null) {
+            attached.close();
+            return raced;
+        }
+        return attached;
+    }
+
+    /**
+     * Closes and forgets the pooled connection to a JVM, if any.
+     * @param pid Process ID of the target JVM.
+     */
+    public void evict(@Nonnull final String pid) {
+        final RemoteJvm jvm = jvms.remove(pid);
+        if (jvm != null) {
+            jvm.close();
+        }
+    }
+
+    /**
+     * Runs {@code collector} against each JVM, in parallel.  Each JVM gets the pool's timeout, counted from when a
+     * thread starts collecting from it; with more JVMs than the pool's parallelism, time spent waiting for a free
+     * thread does not count.
+     * A JVM that times out is interrupted and evicted, closing its connection; one for which {@code collector} throws
+     * is evicted.  Either is logged as a warning and left out of the result.  So are null results.
+     * @param pids Process IDs of the target JVMs.
+     * @param collector What to collect; e.g., {@code Memory::getNmt} or {@code ThreadInfo::format}.
+     * @param <T> Type of what is collected.
+     * @return Results by process ID, in the order of {@code pids}.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <T> Map<String, T> collect(@Nonnull final Collection<String> pids,
+            @Nonnull final Function<RemoteJvm, T> collector) throws InterruptedException {
+        final Map<String, Target<T>> targets = new LinkedHashMap<>();
+        for (final String pid : pids) {
+            final Target<T> target = new Target<>(pid, collector);
+            targets.put(pid, target);
+            exec.execute(target);
+        }
+        final Map<String, T> ret = new LinkedHashMap<>();
+        try {
+            for (final Target<T> target : targets.values()) {
+                try {
+                    final T t = target.get();
+                    if (t != null) {
+                        ret.put(target.pid, t);
+                    }
+                } catch (CancellationException ex) {
+                    LOG.warn("timed out collecting from JVM {}", target.pid);
+                } catch (ExecutionException ex) {
+                    LOG.warn("error collecting from JVM {}", target.pid, ex.getCause());
+                    evict(target.pid);
+                }
+            }
+        } catch (InterruptedException e) {
+            targets.values().forEach(t -> t.cancel(true));
+            throw e;
+        }
+        return ret;
+    }
+
+    /**
+     * Closes all pooled connections and initiates immediate shutdown of the collection threads.
+     */
+    @Override
+    public void close() {
+        exec.shutdownNow();
+        timer.shutdownNow();
+        jvms.values().forEach(RemoteJvm::close);
+        jvms.clear();
+    }
+
+    /**
+     * Collection from one JVM.  Its timeout starts when it starts running, rather than when it is submitted.
+     */
+    private final class Target<T> extends FutureTask<T> {
+        private final String pid;
+
+        Target(final String pid, final Function<RemoteJvm, T> collector) {
+            super(() -> collector.apply(RemoteJvmPool.this.get(pid)));
+            this.pid = pid;
+        }
+
+        @Override
+        public void run() {
+            final ScheduledFuture<?> timeout = timer.schedule(this::timeOut,
+                    RemoteJvmPool.this.timeout.toNanos(), TimeUnit.NANOSECONDS);
+            try {
+                super.run();
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+
+        private void timeOut() {
+            // Closing the connection also fails any remote call the collector is blocked in.
+            if (cancel(true)) {
+                evict(pid);
+            }
+        }
+    }
+}
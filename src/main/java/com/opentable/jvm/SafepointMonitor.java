@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks how often, and for how long, the JVM stops all threads at a safepoint: for GC, for diagnostic commands such
+ * as the ones this library runs, for deoptimization, and for many other VM operations.
+ *
+ * <p>
+ * Totals since JVM start (count, total time, and time to safepoint, i.e. the time spent waiting for all threads to
+ * stop) come from the HotSpot counters, via {@link PerfCounters}.  Where JFR is available, each pause is also recorded
+ * from the {@code jdk.SafepointBegin}, {@code jdk.SafepointStateSynchronization}, {@code jdk.SafepointEnd} and
+ * {@code jdk.ExecuteVMOperation} events, giving percentiles over the most recent pauses and attributing each pause to
+ * the VM operation that caused it and the thread that asked for it; e.g., a {@code PrintThreads} requested by the
+ * {@code nmt-poller} thread.
+ *
+ * <p>
+ * The JFR recording is kept for a retention period and read back on each {@link #sample()}, so sample at least that
+ * often to see every pause.
+ */
+public class SafepointMonitor implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SafepointMonitor.class);
+
+    /**
+     * Percentiles are computed over this many most recent pauses.
+     */
+    public static final int DEFAULT_WINDOW = 1024;
+    /**
+     * How long safepoint events are kept in the JFR recording.
+     */
+    public static final Duration DEFAULT_RETENTION = Duration.ofMinutes(1);
+
+    private static final String BEGIN = "jdk.SafepointBegin";
+    private static final String SYNC = "jdk.SafepointStateSynchronization";
+    private static final String END = "jdk.SafepointEnd";
+    private static final String VM_OPERATION = "jdk.ExecuteVMOperation";
+    private static final String NO_OPERATION = "(none)";
+
+    @Nullable
+    private final PerfCounters counters;
+    @Nullable
+    private final Recording recording;
+    private final long[] window;
+    private int windowCount;
+    private int windowNext;
+    private long lastSafepointId = -1;
+    private final Map<List<String>, Operation> operations = new HashMap<>();
+
+    /**
+     * Uses JFR if available, with {@link #DEFAULT_WINDOW} and {@link #DEFAULT_RETENTION}.
+     */
+    public SafepointMonitor() {
+        this(true, DEFAULT_WINDOW, DEFAULT_RETENTION);
+    }
+
+    /**
+     * @param useJfr Whether to record each pause with JFR, if available.  Without it, only totals are reported.
+     * @param window Percentiles are computed over this many most recent pauses.
+     * @param retention How long to keep safepoint events in the JFR recording; sample at least this often.
+     */
+    public SafepointMonitor(final boolean useJfr, final int window, final Duration retention) {
+        if (window < 1) {
+            throw new IllegalArgumentException(String.format("window must be at least 1: %d", window));
+        }
+        this.counters = PerfCounters.open();
+        this.window = new long[window];
+        this.recording = useJfr ? startRecording(retention) : null;
+    }
+
+    /**
+     * Reads the counters, and any pauses recorded since the last sample.
+     * @return Totals, percentiles and operations so far.
+     */
+    public synchronized Report sample() {
+        if (recording != null) {
+            readRecording(recording);
+        }
+        final long count;
+        final Duration time;
+        final Duration syncTime;
+        if (counters == null) {
+            count = -1;
+            time = null;
+            syncTime = null;
+        } else {
+            count = counters.get(PerfCounters.SAFEPOINTS);
+            time = Duration.ofNanos(counters.ticksToNanos(counters.get(PerfCounters.SAFEPOINT_TIME)));
+            syncTime = Duration.ofNanos(counters.ticksToNanos(counters.get(PerfCounters.SAFEPOINT_SYNC_TIME)));
+        }
+        final long[] sorted = Arrays.copyOf(window, windowCount);
+        Arrays.sort(sorted);
+        final List<Operation> ops = new ArrayList<>();
+        operations.values().forEach(op -> ops.add(op.copy()));
+        ops.sort((a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+        return new Report(count, time, syncTime, recording != null, sorted, ops);
+    }
+
+    /**
+     * Schedules {@link #sample()}, logging each report.
+     * @param scheduler The scheduler on which to run.
+     * @param interval The interval with which to sample, if the scheduler's budget allows it.  Should not exceed
+     * the retention period.
+     * @return {@link DiagnosticScheduler.Task} that you can use to cancel sampling.
+     */
+    public DiagnosticScheduler.Task schedule(final DiagnosticScheduler scheduler, final Duration interval) {
+        return scheduler.schedule("safepoint-monitor", () -> LOG.info("\n{}", sample()), interval);
+    }
+
+    /**
+     * Stops the JFR recording, if any.
+     */
+    @Override
+    public synchronized void close() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    /**
+     * Adds a pause to the window and to its operation's totals.
+     * @param operation VM operation; null if not known.
+     * @param caller Name of the thread that requested the operation; null if not known.
+     */
+    @VisibleForTesting
+    synchronized void record(final long pauseNanos, final long syncNanos, @Nullable final String operation,
+            @Nullable final String caller) {
+        window[windowNext] = pauseNanos;
+        windowNext = (windowNext + 1) % window.length;
+        windowCount = Math.min(windowCount + 1, window.length);
+        final String name = operation == null ? NO_OPERATION : operation;
+        operations.computeIfAbsent(Arrays.asList(name, caller), k -> new Operation(name, caller))
+                .add(pauseNanos, syncNanos);
+    }
+
+    /**
+     * @param sorted Values in ascending order; not empty.
+     * @param q Between 0 and 1.
+     * @return The nearest-rank percentile.
+     */
+    @VisibleForTesting
+    static long percentile(final long[] sorted, final double q) {
+        final int rank = (int) Math.ceil(q * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    @Nullable
+    private static Recording startRecording(final Duration retention) {
+        try {
+            if (!FlightRecorder.isAvailable()) {
+                LOG.info("JFR not available; reporting safepoint totals only");
+                return null;
+            }
+            final Recording r = new Recording();
+            r.setName("otj-jvm safepoints");
+            r.setMaxAge(retention);
+            r.setToDisk(true);
+            for (final String event : Arrays.asList(BEGIN, SYNC, END, VM_OPERATION)) {
+                r.enable(event).withoutThreshold();
+            }
+            r.start();
+            return r;
+        } catch (RuntimeException e) {
+            LOG.warn("error starting JFR recording; reporting safepoint totals only", e);
+            return null;
+        }
+    }
+
+    /**
+     * Dumps the recording and records the pauses that have completed since the last call.
+     */
+    @VisibleForTesting
+    synchronized void readRecording(final Recording r) {
+        Path file = null;
+        final List<RecordedEvent> events;
+        try {
+            file = Files.createTempFile("safepoints", ".jfr");
+            r.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("error reading safepoint events", e);
+            return;
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOG.warn("error deleting {}", file, e);
+                }
+            }
+        }
+
+        final TreeMap<Long, Pause> pauses = new TreeMap<>();
+        for (final RecordedEvent e : events) {
+            final long id = e.getLong("safepointId");
+            // VM operations that don't stop the world, as many do under ZGC and Shenandoah, have safepoint id 0.
+            if (id <= lastSafepointId
+                    || (VM_OPERATION.equals(e.getEventType().getName()) && !e.getBoolean("safepoint"))) {
+                continue;
+            }
+            final Pause p = pauses.computeIfAbsent(id, k -> new Pause());
+            switch (e.getEventType().getName()) {
+                case BEGIN:
+                    p.begin = e.getStartTime();
+                    break;
+                case SYNC:
+                    p.syncNanos = e.getDuration().toNanos();
+                    break;
+                case END:
+                    p.end = e.getEndTime();
+                    break;
+                case VM_OPERATION:
+                    p.operation = e.getString("operation");
+                    final RecordedThread caller = e.getThread("caller");
+                    if (caller != null) {
+                        p.caller = caller.getJavaName() != null ? caller.getJavaName() : caller.getOSName();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        for (final Map.Entry<Long, Pause> e : pauses.entrySet()) {
+            final Pause p = e.getValue();
+            if (p.end == null && e.getKey().equals(pauses.lastKey())) {
+                // Still in progress when we dumped; we'll see it complete next time.
+                break;
+            }
+            lastSafepointId = e.getKey();
+            // An older pause without an end lost some of its events, e.g. to the retention period; skip it.
+            if (p.begin != null && p.end != null) {
+                record(Duration.between(p.begin, p.end).toNanos(), p.syncNanos, p.operation, p.caller);
+            }
+        }
+    }
+
+    private static final class Pause {
+        Instant begin;
+        Instant end;
+        long syncNanos;
+        String operation;
+        String caller;
+    }
+
+    /**
+     * Pauses for one VM operation requested by one thread.
+     */
+    public static class Operation {
+        /** VM operation, e.g. "G1CollectForAllocation" or "PrintThreads"; "(none)" if not known. */
+        public final String name;
+        /** Name of the thread that requested it; null if not known. */
+        @Nullable
+        public final String caller;
+        private long count;
+        private long totalNanos;
+        private long syncNanos;
+        private long maxNanos;
+
+        Operation(final String name, @Nullable final String caller) {
+            this.name = name;
+            this.caller = caller;
+        }
+
+        /**
+         * @return Number of pauses.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Total time paused.
+         */
+        public Duration getTotalTime() {
+            return Duration.ofNanos(totalNanos);
+        }
+
+        /**
+         * @return Total time spent waiting for threads to reach the safepoint.
+         */
+        public Duration getSyncTime() {
+            return Duration.ofNanos(syncNanos);
+        }
+
+        /**
+         * @return Longest pause.
+         */
+        public Duration getMaxTime() {
+            return Duration.ofNanos(maxNanos);
+        }
+
+        private void add(final long pause, final long sync) {
+            count++;
+            totalNanos += pause;
+            syncNanos += sync;
+            maxNanos = Math.max(maxNanos, pause);
+        }
+
+        private Operation copy() {
+            final Operation ret = new Operation(name, caller);
+            ret.count = count;
+            ret.totalNanos = totalNanos;
+            ret.syncNanos = syncNanos;
+            ret.maxNanos = maxNanos;
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s): %d pauses, %s total, %s to safepoint, %s max", name,
+                    caller == null ? "VM" : caller, count, getTotalTime(), getSyncTime(), getMaxTime());
+        }
+    }
+
+    /**
+     * Returned by {@link #sample()}.
+     */
+    public static class Report {
+        /** Safepoints since JVM start.  -1 if the HotSpot counters are not available. */
+        public final long count;
+        /** Total time at safepoints since JVM start.  null if the HotSpot counters are not available. */
+        @Nullable
+        public final Duration time;
+        /** Total time to safepoint since JVM start.  null if the HotSpot counters are not available. */
+        @Nullable
+        public final Duration syncTime;
+        /** Whether pauses are being recorded with JFR.  If not, there are no percentiles or operations. */
+        public final boolean recording;
+        /** Number of recent pauses the percentiles are computed over. */
+        public final int pauses;
+        /** Percentiles of recent pauses.  null if there are none. */
+        @Nullable
+        public final Duration p50;
+        @Nullable
+        public final Duration p90;
+        @Nullable
+        public final Duration p99;
+        @Nullable
+        public final Duration max;
+        /**
+         * Pauses by VM operation and requesting thread since the monitor was started, most total time first.
+         */
+        public final List<Operation> operations;
+
+        Report(final long count, @Nullable final Duration time, @Nullable final Duration syncTime,
+                final boolean recording, final long[] sorted, final List<Operation> operations) {
+            this.count = count;
+            this.time = time;
+            this.syncTime = syncTime;
+            this.recording = recording;
+            this.pauses = sorted.length;
+            this.p50 = sorted.length == 0 ? null : Duration.ofNanos(percentile(sorted, 0.5));
+            this.p90 = sorted.length == 0 ? null : Duration.ofNanos(percentile(sorted, 0.9));
+            this.p99 = sorted.length == 0 ? null : Duration.ofNanos(percentile(sorted, 0.99));
+            this.max = sorted.length == 0 ? null : Duration.ofNanos(sorted[sorted.length - 1]);
+            this.operations = Collections.unmodifiableList(operations);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("safepoints: %d, %s total, %s to safepoint", count, time, syncTime));
+            if (pauses > 0) {
+                sb.append(String.format("%nlast %d pauses: p50 %s, p90 %s, p99 %s, max %s", pauses, p50, p90, p99,
+                        max));
+            }
+            for (final Operation op : operations) {
+                sb.append("\n  ").append(op);
+            }
+            return sb.toString();
+        }
+    }
+}
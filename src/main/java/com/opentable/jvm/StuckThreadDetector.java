@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds threads that have been RUNNABLE or BLOCKED in the same top frames for longer than a threshold; e.g., stuck in
+ * a socket read that will never complete, spinning in a loop, or queued on a lock that is never released.
+ *
+ * <p>
+ * Each {@link #sample()} takes a lightweight snapshot of all threads, with only the top few frames and no lock
+ * information, and compares it with the previous one.  Frames are compared by class and method, not line, so that a
+ * loop spinning over several lines of the same methods still counts as stuck.  Threads that are RUNNABLE but idle by
+ * design, such as selector and accept loops, are ignored.
+ */
+public class StuckThreadDetector {
+    private static final Logger LOG = LoggerFactory.getLogger(StuckThreadDetector.class);
+
+    /**
+     * How many top frames are compared between snapshots, and reported.
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    /**
+     * Methods that RUNNABLE threads sit in, in native code, while idly waiting for work.
+     */
+    private static final List<String> IDLE_METHODS = Arrays.asList(
+            "sun.nio.ch.EPoll.wait",
+            "sun.nio.ch.KQueue.poll",
+            "sun.nio.ch.WEPoll.wait",
+            "sun.nio.ch.WindowsSelectorImpl$SubSelector.poll0",
+            "sun.nio.ch.ServerSocketChannelImpl.accept",
+            "sun.nio.ch.NioSocketImpl.accept",
+            "java.net.PlainSocketImpl.socketAccept",
+            "java.net.ServerSocket.implAccept",
+            "java.lang.ref.Reference.waitForReferencePendingList");
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final long thresholdNanos;
+    private final int depth;
+    private Map<Long, Tracked> tracked = new HashMap<>();
+
+    /**
+     * Uses {@link #DEFAULT_DEPTH}.
+     * @param threshold Report threads that have been in the same top frames for at least this long.
+     */
+    public StuckThreadDetector(final Duration threshold) {
+        this(threshold, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param threshold Report threads that have been in the same top frames for at least this long.
+     * @param depth How many top frames to compare and report.
+     */
+    public StuckThreadDetector(final Duration threshold, final int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException(String.format("depth must be at least 1: %d", depth));
+        }
+        this.thresholdNanos = threshold.toNanos();
+        this.depth = depth;
+    }
+
+    /**
+     * Takes a snapshot of all threads and compares it with the previous one.
+     * Logs a warning the first time a thread is found stuck, and an info message when a thread that was reported as
+     * stuck moves on.
+     * How long a thread has been stuck is only known to within the interval between samples.
+     * @return Threads that are stuck, longest-stuck first.
+     */
+    public synchronized List<StuckThread> sample() {
+        final long now = System.nanoTime();
+        final Map<Long, Tracked> next = new HashMap<>();
+        final List<StuckThread> ret = new ArrayList<>();
+        for (final java.lang.management.ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), depth)) {
+            if (info == null) {
+                continue;
+            }
+            final Thread.State state = info.getThreadState();
+            final StackTraceElement[] frames = info.getStackTrace();
+            if (state != Thread.State.RUNNABLE && state != Thread.State.BLOCKED || frames.length == 0
+                    || isIdle(frames)) {
+                continue;
+            }
+            final long id = info.getThreadId();
+            Tracked t = tracked.get(id);
+            if (t == null || t.state != state || !sameMethods(t.frames, frames)) {
+                t = new Tracked(state, frames, now);
+            } else if (t.cpuStart == -1) {
+                // Second time seen in the same frames; only now is it worth asking for its CPU time.
+                t.cpuStart = cpuTime(id);
+                t.cpuStartNanos = now;
+            }
+            next.put(id, t);
+            if (now - t.sinceNanos < thresholdNanos) {
+                continue;
+            }
+            final StuckThread stuck = new StuckThread(id, info.getThreadName(), state,
+                    Duration.ofNanos(now - t.sinceNanos), cpu(t, id, now), frames);
+            ret.add(stuck);
+            if (!t.reported) {
+                t.reported = true;
+                LOG.warn("stuck thread: {}", stuck);
+            }
+        }
+        tracked.forEach((id, t) -> {
+            if (t.reported && next.get(id) != t) {
+                LOG.info("thread {} moved on after at least {}", id, Duration.ofNanos(now - t.sinceNanos));
+            }
+        });
+        tracked = next;
+        ret.sort((a, b) -> b.stuckFor.compareTo(a.stuckFor));
+        return ret;
+    }
+
+    /**
+     * Schedules {@link #sample()}.  Use an interval well below the threshold, so that stuck threads are spotted
+     * promptly and durations are accurate.
+     * @param scheduler The scheduler on which to run.
+     * @param interval The interval with which to sample, if the scheduler's budget allows it.
+     * @return {@link DiagnosticScheduler.Task} that you can use to cancel sampling.
+     */
+    public DiagnosticScheduler.Task schedule(final DiagnosticScheduler scheduler, final Duration interval) {
+        return scheduler.schedule("stuck-thread-detector", this::sample, interval);
+    }
+
+    private static boolean isIdle(final StackTraceElement[] frames) {
+        for (final StackTraceElement frame : frames) {
+            final String method = frame.getClassName() + '.' + frame.getMethodName();
+            if (IDLE_METHODS.contains(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameMethods(final StackTraceElement[] a, final StackTraceElement[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (!a[i].getClassName().equals(b[i].getClassName())
+                    || !a[i].getMethodName().equals(b[i].getMethodName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long cpuTime(final long id) {
+        try {
+            return threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(id) : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private Duration cpu(final Tracked t, final long id, final long now) {
+        if (t.cpuStart == -1 || now == t.cpuStartNanos) {
+            return null;
+        }
+        final long cpu = cpuTime(id);
+        return cpu == -1 ? null : Duration.ofNanos(cpu - t.cpuStart);
+    }
+
+    private static final class Tracked {
+        final Thread.State state;
+        final StackTraceElement[] frames;
+        final long sinceNanos;
+        long cpuStart = -1;
+        long cpuStartNanos;
+        boolean reported;
+
+        Tracked(final Thread.State state, final StackTraceElement[] frames, final long sinceNanos) {
+            this.state = state;
+            this.frames = frames;
+            this.sinceNanos = sinceNanos;
+        }
+    }
+
+    /**
+     * A thread found stuck by {@link #sample()}.
+     */
+    public static class StuckThread {
+        public final long threadId;
+        public final String threadName;
+        /** {@link Thread.State#RUNNABLE} or {@link Thread.State#BLOCKED}. */
+        public final Thread.State state;
+        /** How long the thread has been in the same top frames, as of the sample. */
+        public final Duration stuckFor;
+        /**
+         * CPU time the thread used while stuck, measured from the second sample that saw it stuck.  Close to the
+         * elapsed time for a spinning thread, close to zero for one waiting in native code, e.g. on a socket.
+         * null if not known yet, or if the JVM does not support measuring thread CPU time.
+         */
+        @Nullable
+        public final Duration cpuTime;
+        /** The top frames. */
+        public final List<StackTraceElement> frames;
+
+        StuckThread(final long threadId, final String threadName, final Thread.State state, final Duration stuckFor,
+                @Nullable final Duration cpuTime, final StackTraceElement[] frames) {
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.state = state;
+            this.stuckFor = stuckFor;
+            this.cpuTime = cpuTime;
+            this.frames = Collections.unmodifiableList(Arrays.asList(frames));
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append('"').append(threadName).append("\" #").append(threadId).append(' ').append(state)
+                    .append(" for ").append(stuckFor.toMillis()).append("ms");
+            if (cpuTime != null) {
+                sb.append(", cpu ").append(cpuTime.toMillis()).append("ms");
+            }
+            for (final StackTraceElement frame : frames) {
+                sb.append("\n\tat ").append(frame);
+            }
+            return sb.toString();
+        }
+    }
+}
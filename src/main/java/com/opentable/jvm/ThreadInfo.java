@@ -24,6 +24,7 @@
 
 package com.opentable.jvm;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 /**
@@ -42,4 +43,14 @@ public class ThreadInfo {
     public static String format() {
         return Dcmd.invoke("threadPrint", "-l");
     }
+
+    /**
+     * Like {@link #format()}, but in another JVM.
+     * @param jvm The other JVM.
+     * @return Human-readable dump of all thread stacks.  {@code null} if there was an error getting it.
+     */
+    @Nullable
+    public static String format(@Nonnull final RemoteJvm jvm) {
+        return Dcmd.invoke(jvm.getConnection(), "threadPrint", "-l");
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompilerMonitorTest {
+    @Test
+    public void parseCodecacheSegmented() {
+        final String s = "CodeHeap 'non-profiled nmethods': size=120036Kb used=24Kb max_used=30Kb free=120011Kb\n" +
+                " bounds [0x00007f9fb4ec7000, 0x00007f9fb5137000, 0x00007f9fbc400000]\n" +
+                "CodeHeap 'profiled nmethods': size=120032Kb used=65Kb max_used=65Kb free=119966Kb\n" +
+                " bounds [0x00007f9fad400000, 0x00007f9fad670000, 0x00007f9fb4938000]\n" +
+                "CodeHeap 'non-nmethods': size=5692Kb used=1072Kb max_used=1072Kb free=4619Kb\n" +
+                " bounds [0x00007f9fb4938000, 0x00007f9fb4ba8000, 0x00007f9fb4ec7000]\n" +
+                " total_blobs=406 nmethods=70 adapters=252\n" +
+                " compilation: enabled\n" +
+                "              stopped_count=0, restarted_count=0\n" +
+                " full_count=0\n";
+        final CompilerMonitor.CodeCache c = CompilerMonitor.parseCodecache(s);
+        Assert.assertEquals(c.segments.size(), 3);
+        final CompilerMonitor.Segment seg = c.segments.get(0);
+        Assert.assertEquals(seg.name, "non-profiled nmethods");
+        Assert.assertEquals(seg.size, 120036 * 1024);
+        Assert.assertEquals(seg.used, 24 * 1024);
+        Assert.assertEquals(seg.maxUsed, 30 * 1024);
+        Assert.assertEquals(seg.free, 120011 * 1024);
+        Assert.assertEquals(seg.fragmentedBytes(), 6 * 1024);
+        Assert.assertTrue(c.compilationEnabled);
+        Assert.assertEquals(c.fullCount, 0);
+        Assert.assertEquals(c.nmethods, 70);
+    }
+
+    @Test
+    public void parseCodecacheFull() {
+        final String s = "CodeCache: size=245760Kb used=245000Kb max_used=245700Kb free=760Kb\n" +
+                " bounds [0x00007f54d5400000, 0x00007f54d5670000, 0x00007f54e4400000]\n" +
+                " total_blobs=408 nmethods=72 adapters=252\n" +
+                " compilation: disabled (not enough contiguous free space left)\n" +
+                "              stopped_count=1, restarted_count=0\n" +
+                " full_count=1\n";
+        final CompilerMonitor.CodeCache c = CompilerMonitor.parseCodecache(s);
+        Assert.assertEquals(c.segments.size(), 1);
+        Assert.assertEquals(c.segments.get(0).name, "CodeCache");
+        Assert.assertFalse(c.compilationEnabled);
+        Assert.assertEquals(c.fullCount, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseCodecacheGarbage() {
+        CompilerMonitor.parseCodecache("nothing to see here");
+    }
+
+    @Test
+    public void parseQueue() {
+        final String s = "Current compiles: \n" +
+                "C2 CompilerThread0  1234    4       java.lang.String::hashCode (49 bytes)\n" +
+                "\n" +
+                "C1 compile queue:\n" +
+                "  1240   3       java.util.HashMap::put (13 bytes)\n" +
+                "  1241   3       java.util.HashMap::get (19 bytes)\n" +
+                "\n" +
+                "C2 compile queue:\n" +
+                "Empty\n" +
+                "\n";
+        final CompilerMonitor.Queue q = CompilerMonitor.parseQueue(s);
+        Assert.assertEquals(q.active, 1);
+        Assert.assertEquals(q.queued, 2);
+    }
+
+    @Test
+    public void sample() {
+        final CompilerMonitor monitor = new CompilerMonitor();
+        final CompilerMonitor.Report first = monitor.sample();
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(first.queue);
+        Assert.assertFalse(first.codeCache.segments.isEmpty());
+        Assert.assertFalse(first.pools.isEmpty());
+        final CompilerMonitor.Report second = monitor.sample();
+        Assert.assertNotNull(second);
+        Assert.assertTrue(second.compileTimeRate >= 0);
+    }
+}
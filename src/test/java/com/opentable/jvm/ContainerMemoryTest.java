@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContainerMemoryTest {
+    private static final long M = 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void v2() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        write(root, "cgroup.controllers", "cpuset cpu io memory pids\n");
+        write(root, "memory.max", (512 * M) + "\n");
+        write(root, "memory.current", (300 * M) + "\n");
+        write(root, "memory.stat", "anon " + (200 * M) + "\nfile " + (100 * M) + "\nkernel_stack 1234\n" +
+                "inactive_anon 0\ninactive_file " + (60 * M) + "\n");
+        write(root, "memory.events", "low 0\nhigh 0\nmax 7\noom 1\noom_kill 1\n");
+        final ContainerMemory m = ContainerMemory.get(root, null);
+        Assert.assertNotNull(m);
+        Assert.assertEquals(m.version, 2);
+        Assert.assertEquals(m.limit, 512 * M);
+        Assert.assertEquals(m.usage, 300 * M);
+        Assert.assertEquals(m.anon, 200 * M);
+        Assert.assertEquals(m.file, 100 * M);
+        Assert.assertEquals(m.workingSet(), 240 * M);
+        Assert.assertEquals(m.headroom(), 272 * M);
+        Assert.assertEquals(m.limitHits, 7);
+        Assert.assertEquals(m.oomKills, 1);
+    }
+
+    @Test
+    public void v2Unlimited() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        write(root, "cgroup.controllers", "memory\n");
+        write(root, "memory.max", "max\n");
+        write(root, "memory.current", "1000\n");
+        write(root, "memory.stat", "anon 1000\n");
+        final ContainerMemory m = ContainerMemory.get(root, null);
+        Assert.assertNotNull(m);
+        Assert.assertEquals(m.limit, -1);
+        Assert.assertEquals(m.headroom(), -1);
+        Assert.assertEquals(m.oomKills, -1);
+    }
+
+    @Test
+    public void v2NestedParentLimit() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        final Path slice = root.resolve("kubepods.slice/pod1.slice");
+        final Path group = slice.resolve("cri-containerd-1.scope");
+        Files.createDirectories(group);
+        write(root, "cgroup.controllers", "memory\n");
+        write(root.resolve("kubepods.slice"), "memory.max", (2048 * M) + "\n");
+        write(slice, "memory.max", (512 * M) + "\n");
+        write(group, "memory.max", "max\n");
+        write(group, "memory.current", (300 * M) + "\n");
+        write(group, "memory.stat", "anon " + (300 * M) + "\n");
+        final String self = "0::/kubepods.slice/pod1.slice/cri-containerd-1.scope\n";
+        final ContainerMemory m = ContainerMemory.get(root, self);
+        Assert.assertNotNull(m);
+        Assert.assertEquals(m.limit, 512 * M);
+        Assert.assertEquals(m.headroom(), 212 * M);
+    }
+
+    @Test
+    public void v1Nested() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        final Path group = root.resolve("memory/kubepods/pod1");
+        Files.createDirectories(group);
+        write(group, "memory.limit_in_bytes", (1024 * M) + "\n");
+        write(group, "memory.usage_in_bytes", (800 * M) + "\n");
+        write(group, "memory.failcnt", "3\n");
+        write(group, "memory.oom_control", "oom_kill_disable 0\nunder_oom 0\noom_kill 2\n");
+        write(group, "memory.stat", "cache 1\nrss 2\nhierarchical_memory_limit " + (768 * M) + "\n" +
+                "total_cache " + (300 * M) + "\ntotal_rss " + (500 * M) + "\ntotal_inactive_file " + (100 * M) + "\n");
+        final String self = "4:memory:/kubepods/pod1\n3:cpu,cpuacct:/kubepods/pod1\n0::/\n";
+        final ContainerMemory m = ContainerMemory.get(root, self);
+        Assert.assertNotNull(m);
+        Assert.assertEquals(m.version, 1);
+        Assert.assertEquals(m.limit, 768 * M);
+        Assert.assertEquals(m.anon, 500 * M);
+        Assert.assertEquals(m.file, 300 * M);
+        Assert.assertEquals(m.workingSet(), 700 * M);
+        Assert.assertEquals(m.limitHits, 3);
+        Assert.assertEquals(m.oomKills, 2);
+    }
+
+    @Test
+    public void v1Unlimited() throws IOException {
+        final Path group = tmp.getRoot().toPath().resolve("memory");
+        Files.createDirectories(group);
+        write(group, "memory.limit_in_bytes", "9223372036854771712\n");
+        write(group, "memory.usage_in_bytes", "1000\n");
+        write(group, "memory.stat", "total_rss 1000\n");
+        final ContainerMemory m = ContainerMemory.get(tmp.getRoot().toPath(), null);
+        Assert.assertNotNull(m);
+        Assert.assertEquals(m.limit, -1);
+        Assert.assertEquals(m.limitHits, -1);
+    }
+
+    @Test
+    public void missing() {
+        Assert.assertNull(ContainerMemory.get(tmp.getRoot().toPath(), null));
+    }
+
+    @Test
+    public void statValue() {
+        Assert.assertEquals(ContainerMemory.statValue("file 1\nfile_mapped 2\n", "file_mapped"), 2);
+        Assert.assertEquals(ContainerMemory.statValue("file_mapped 2\nfile 1", "file"), 1);
+        Assert.assertEquals(ContainerMemory.statValue("file_mapped 2\n", "file"), -1);
+    }
+
+    @Test
+    public void timeToLimit() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        write(root, "cgroup.controllers", "memory\n");
+        write(root, "memory.max", (1000 * M) + "\n");
+        write(root, "memory.stat", "anon 0\n");
+        final ContainerMemory.Tracker tracker = new ContainerMemory.Tracker(root, java.time.Duration.ofMinutes(10));
+        ContainerMemory.Headroom h = null;
+        // Grows 1 MiB per second, from 400 MiB.
+        for (int i = 0; i <= 60; i += 10) {
+            write(root, "memory.current", ((400 + i) * M) + "\n");
+            h = tracker.update(TimeUnit.SECONDS.toNanos(i), ContainerMemory.get(root, null), null, 1, 2);
+        }
+        Assert.assertNotNull(h);
+        Assert.assertEquals(h.growthPerSecond, M, 1);
+        Assert.assertNotNull(h.timeToLimit);
+        Assert.assertEquals(h.timeToLimit.getSeconds(), 540);
+        Assert.assertEquals(h.nmtCommitted, -1);
+    }
+
+    private static void write(final Path dir, final String name, final String content) throws IOException {
+        Files.write(dir.resolve(name), content.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DiagnosticSchedulerTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void nextDelayCheap() {
+        // 1ms per run at 0.5% of a core affords a 200ms interval.
+        final long cost = TimeUnit.MILLISECONDS.toNanos(1);
+        Assert.assertEquals(DiagnosticScheduler.nextDelayNanos(SECOND, cost, 0.005, 64), SECOND);
+    }
+
+    @Test
+    public void nextDelayStretched() {
+        final long cost = TimeUnit.MILLISECONDS.toNanos(10);
+        Assert.assertEquals(DiagnosticScheduler.nextDelayNanos(SECOND, cost, 0.005, 64), 2 * SECOND);
+    }
+
+    @Test
+    public void nextDelayCapped() {
+        Assert.assertEquals(DiagnosticScheduler.nextDelayNanos(SECOND, SECOND, 0.005, 64), 64 * SECOND);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badBudget() {
+        new DiagnosticScheduler("test", 0, 1).close();
+    }
+
+    @Test
+    public void runsRepeatedly() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        try (DiagnosticScheduler scheduler = new DiagnosticScheduler("test", 1, 1)) {
+            final DiagnosticScheduler.Task task = scheduler.schedule("count", latch::countDown, Duration.ofMillis(1));
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(task.getName(), "count");
+            Assert.assertTrue(task.getInterval().compareTo(Duration.ofMillis(1)) >= 0);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiagnosticsJournalTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        final Path path = tmp.getRoot().toPath().resolve("journal.bin");
+        try (DiagnosticsJournal j = DiagnosticsJournal.open(path, 16)) {
+            j.append(DiagnosticsJournal.Type.THREADS, 10, 5, 12, 100);
+            j.append(Memory.snapshot());
+        }
+        final List<DiagnosticsJournal.Record> records = DiagnosticsJournal.read(path);
+        Assert.assertEquals(records.size(), 3);
+        final DiagnosticsJournal.Record threads = records.get(0);
+        Assert.assertEquals(threads.type, DiagnosticsJournal.Type.THREADS);
+        Assert.assertEquals(threads.sequence, 0);
+        Assert.assertEquals(threads.get(0), 10);
+        Assert.assertEquals(threads.get(3), 100);
+        Assert.assertEquals(threads.get(4), -1);
+        Assert.assertTrue(threads.timestamp > 0);
+        Assert.assertEquals(records.get(1).type, DiagnosticsJournal.Type.HEAP);
+        Assert.assertTrue(records.get(1).get(1) > 0);
+        Assert.assertEquals(records.get(2).type, DiagnosticsJournal.Type.NMT);
+    }
+
+    @Test
+    public void wrapsAround() throws IOException {
+        final Path path = tmp.getRoot().toPath().resolve("journal.bin");
+        // Not closed, as if the process had been killed.
+        final DiagnosticsJournal j = DiagnosticsJournal.open(path, 4);
+        for (int i = 0; i < 10; i++) {
+            j.append(DiagnosticsJournal.Type.THREADS, i);
+        }
+        final List<DiagnosticsJournal.Record> records = DiagnosticsJournal.read(path);
+        Assert.assertEquals(records.size(), 4);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(records.get(i).sequence, 6 + i);
+            Assert.assertEquals(records.get(i).get(0), 6 + i);
+        }
+    }
+
+    @Test
+    public void keepsPrevious() throws IOException {
+        final Path path = tmp.getRoot().toPath().resolve("journal.bin");
+        DiagnosticsJournal.open(path, 4).append(DiagnosticsJournal.Type.THREADS, 1);
+        DiagnosticsJournal.open(path, 4).close();
+        final Path prev = path.resolveSibling("journal.bin" + DiagnosticsJournal.PREVIOUS_SUFFIX);
+        Assert.assertEquals(DiagnosticsJournal.read(prev).size(), 1);
+        Assert.assertEquals(DiagnosticsJournal.read(path).size(), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void readGarbage() throws IOException {
+        final Path path = tmp.getRoot().toPath().resolve("garbage.bin");
+        Files.write(path, new byte[128]);
+        DiagnosticsJournal.read(path);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectBufferTrackerTest {
+    private final List<ByteBuffer> held = new ArrayList<>();
+
+    @Test
+    public void sites() {
+        final DirectBufferTracker tracker = new DirectBufferTracker(Duration.ofMinutes(1), 1, 8, 3);
+        for (int i = 0; i < 3; i++) {
+            leak(tracker);
+        }
+        tracker.track(ByteBuffer.allocate(1024));
+
+        DirectBufferTracker.Report report = tracker.sample();
+        Assert.assertTrue(report.directCount >= 3);
+        Assert.assertTrue(report.directUsed >= 3 * 4096);
+        Assert.assertTrue(report.maxDirectMemory > 0);
+        Assert.assertEquals(report.sites.size(), 1);
+        DirectBufferTracker.SiteReport site = report.sites.get(0);
+        Assert.assertEquals(site.frames.size(), 3);
+        Assert.assertEquals(site.frames.get(0).getMethodName(), "leak");
+        Assert.assertEquals(site.liveCount, 3);
+        Assert.assertEquals(site.liveBytes, 3 * 4096);
+        Assert.assertEquals(site.growth, 3 * 4096);
+        Assert.assertTrue(report.toString().contains("DirectBufferTrackerTest.leak"));
+
+        // Called from another line, so another site; it grew since the last sample, the first one didn't.
+        leak(tracker);
+        report = tracker.sample();
+        Assert.assertEquals(report.sites.size(), 2);
+        site = report.sites.get(0);
+        Assert.assertEquals(site.liveCount, 1);
+        Assert.assertEquals(site.growth, 4096);
+        site = report.sites.get(1);
+        Assert.assertEquals(site.liveCount, 3);
+        Assert.assertEquals(site.growth, 0);
+        Assert.assertEquals(site.allocatedCount, 3);
+    }
+
+    @Test
+    public void evictLeastGrowth() {
+        final DirectBufferTracker tracker = new DirectBufferTracker(Duration.ofMinutes(1), 1, 2, 1);
+        final DirectBufferTracker.Site a = tracker.allocated(frames("a"), 100);
+        tracker.allocated(frames("b"), 1000);
+        // Neither has been through a sample yet, so neither makes room.
+        Assert.assertNull(tracker.allocated(frames("c"), 50));
+        tracker.sample();
+        tracker.allocated(frames("a"), 100);
+        tracker.allocated(frames("a"), 100);
+        tracker.freed(a, 100);
+        // b holds more, but a grew since the sample.
+        tracker.allocated(frames("c"), 50);
+
+        final List<DirectBufferTracker.SiteReport> sites = tracker.sample().sites;
+        Assert.assertEquals(sites.size(), 2);
+        Assert.assertEquals(sites.get(0).frames.get(0).getMethodName(), "a");
+        Assert.assertEquals(sites.get(0).liveBytes, 200);
+        Assert.assertEquals(sites.get(0).allocatedBytes, 300);
+        Assert.assertEquals(sites.get(0).growth, 100);
+        Assert.assertEquals(sites.get(1).frames.get(0).getMethodName(), "c");
+    }
+
+    @Test
+    public void lateLeakSurvivesChurn() {
+        final DirectBufferTracker tracker = new DirectBufferTracker(Duration.ofMinutes(1), 1, 4, 1);
+        for (final String method : new String[] {"a", "b", "c", "d"}) {
+            tracker.allocated(frames(method), 100);
+        }
+        tracker.sample();
+        // The table is full when the leak starts; every sample period, another short-lived site shows up.
+        for (int i = 0; i < 10; i++) {
+            tracker.allocated(frames("leak"), 10);
+            final DirectBufferTracker.Site churn = tracker.allocated(frames("churn" + i), 1);
+            if (churn != null) {
+                tracker.freed(churn, 1);
+            }
+            tracker.sample();
+        }
+        tracker.allocated(frames("leak"), 10);
+        final DirectBufferTracker.SiteReport top = tracker.sample().sites.get(0);
+        Assert.assertEquals(top.frames.get(0).getMethodName(), "leak");
+        Assert.assertEquals(top.liveBytes, 110);
+        Assert.assertEquals(top.allocatedCount, 11);
+        Assert.assertEquals(top.growth, 10);
+    }
+
+    @Test
+    public void reportWithoutPools() {
+        final String s = new DirectBufferTracker.Report(-1, -1, -1, -1, -1, -1, 1024, 0, Collections.emptyList())
+                .toString();
+        Assert.assertEquals(s, "direct buffers: n/a; mapped buffers: n/a");
+    }
+
+    @Test
+    public void poolsOnly() {
+        final DirectBufferTracker tracker = new DirectBufferTracker(Duration.ofMinutes(1));
+        held.add(tracker.allocateDirect(4096));
+        final DirectBufferTracker.Report report = tracker.sample();
+        Assert.assertTrue(report.sites.isEmpty());
+        Assert.assertTrue(report.directCount > 0);
+        Assert.assertTrue(report.mappedCount >= 0);
+    }
+
+    private void leak(final DirectBufferTracker tracker) {
+        held.add(tracker.allocateDirect(4096));
+    }
+
+    private static List<StackTraceElement> frames(final String method) {
+        return Collections.singletonList(new StackTraceElement("Test", method, "Test.java", 1));
+    }
+}
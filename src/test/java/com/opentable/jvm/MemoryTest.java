@@ -46,6 +46,28 @@ public class MemoryTest {
         Assert.assertNotNull(Memory.getNmt());
     }
 
+    @Test
+    public void snapshot() {
+        final MemorySnapshot s = Memory.snapshot();
+        Assert.assertNotNull(s.nmt);
+        Assert.assertTrue(s.timestamp > 0);
+        Assert.assertTrue(s.heapCommitted > 0);
+        Assert.assertTrue(s.directCount >= 0);
+        Assert.assertTrue(s.mappedCount >= 0);
+        Assert.assertFalse(s.pools.isEmpty());
+        final MemorySnapshot.Pool metaspace = s.pool("Metaspace");
+        Assert.assertNotNull(metaspace);
+        Assert.assertFalse(metaspace.heap);
+        Assert.assertTrue(metaspace.used > 0);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotNmtUnmodifiable() {
+        final MemorySnapshot s = Memory.snapshot();
+        Assert.assertNotNull(s.nmt);
+        s.nmt.categories.clear();
+    }
+
     // Not parallel-safe.
     @Test
     public void dumpHeapTmpDirDefault() {
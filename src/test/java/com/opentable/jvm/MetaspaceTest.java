@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetaspaceTest {
+    private static final String STATS = "ClassLoader         Parent              CLD*               Classes   ChunkSz" +
+            "   BlockSz  Type\n" +
+            "0x00007faf1c07bb88  0x0000000000000000  0x00007faf74083350       0         0         0" +
+            "  jdk.internal.loader.ClassLoaders$PlatformClassLoader\n" +
+            "0x00007faf1c0798a8  0x00007faf1c07bb88  0x00007faf740892d0       3       768       673" +
+            "  jdk.internal.loader.ClassLoaders$AppClassLoader\n" +
+            "0x00007faf1c0799f0  0x00007faf1c0798a8  0x00007faf740893a0      40     40960     39000" +
+            "  groovy.lang.GroovyClassLoader$InnerLoader\n" +
+            "0x0000000000000000  0x0000000000000000  0x00007faf74026f10     613    557056     22035" +
+            "  <boot class loader>\n" +
+            "                                                                 1       384       211" +
+            "   + hidden classes\n" +
+            "Total = 4                                                      657    599168     61919  \n" +
+            "ChunkSz: Total size of all allocated metaspace chunks\n" +
+            "BlockSz: Total size of all allocated metaspace blocks (each chunk has several blocks)\n";
+
+    private static final String METASPACE = "\n" +
+            "Total Usage - 3 loaders, 617 classes (608 shared):\n" +
+            "  Non-Class:    3 chunks,  4200448 bytes capacity,202752 bytes (  5%) committed, 178456 bytes (  4%)" +
+            " used, 24296 bytes ( <1%) free,     0 bytes (  0%) waste , deallocated: 0 blocks with 0 bytes\n" +
+            "      Class:    3 chunks,  265216 bytes capacity,68608 bytes ( 26%) committed,  4896 bytes (  2%) used," +
+            " 63712 bytes ( 24%) free,     0 bytes (  0%) waste , deallocated: 0 blocks with 0 bytes\n" +
+            "       Both:    6 chunks,  4465664 bytes capacity,271360 bytes (  6%) committed, 183352 bytes (  4%) used," +
+            " 88008 bytes (  2%) free,     0 bytes (  0%) waste , deallocated: 0 blocks with 0 bytes\n" +
+            "\n" +
+            "\n" +
+            "Virtual space:\n" +
+            "  Non-class space:  67108864 bytes reserved,  196608 bytes ( <1%) committed,  1 nodes.\n";
+
+    @Test
+    public void parseClassLoaderStats() {
+        final List<Metaspace.Loader> loaders = Metaspace.parseClassLoaderStats(STATS);
+        Assert.assertEquals(loaders.size(), 4);
+        final Metaspace.Loader groovy = loaders.get(2);
+        Assert.assertEquals(groovy.type, "groovy.lang.GroovyClassLoader$InnerLoader");
+        Assert.assertEquals(groovy.parent, "0x00007faf1c0798a8");
+        Assert.assertEquals(groovy.classes, 40);
+        Assert.assertEquals(groovy.chunkBytes, 40960);
+        Assert.assertEquals(groovy.blockBytes, 39000);
+        final Metaspace.Loader boot = loaders.get(3);
+        Assert.assertEquals(boot.type, "<boot class loader>");
+        Assert.assertEquals(boot.classes, 613);
+        Assert.assertEquals(boot.hiddenClasses, 1);
+        Assert.assertEquals(boot.hiddenChunkBytes, 384);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseClassLoaderStatsGarbage() {
+        Metaspace.parseClassLoaderStats("a\nb");
+    }
+
+    @Test
+    public void parseMetaspace() {
+        final Metaspace.Usage u = Metaspace.parseMetaspace(METASPACE);
+        Assert.assertEquals(u.loaders, 3);
+        Assert.assertEquals(u.classes, 617);
+        Assert.assertEquals(u.nonClass.capacity, 4200448);
+        Assert.assertEquals(u.nonClass.committed, 202752);
+        Assert.assertEquals(u.nonClass.used, 178456);
+        Assert.assertNotNull(u.classSpace);
+        Assert.assertEquals(u.classSpace.committed, 68608);
+        Assert.assertEquals(u.total.used, 183352);
+    }
+
+    @Test
+    public void diff() {
+        final List<Metaspace.Loader> before = Metaspace.parseClassLoaderStats(STATS);
+        final String leaked = STATS.replace("Total = 4",
+                "0x00007faf1c079ff0  0x00007faf1c0798a8  0x00007faf740894a0      40     40960     39000" +
+                "  groovy.lang.GroovyClassLoader$InnerLoader\nTotal = 5");
+        final List<Metaspace.TypeDelta> diff = Metaspace.diff(before, Metaspace.parseClassLoaderStats(leaked));
+        Assert.assertEquals(diff.size(), 4);
+        final Metaspace.TypeDelta top = diff.get(0);
+        Assert.assertEquals(top.type, "groovy.lang.GroovyClassLoader$InnerLoader");
+        Assert.assertEquals(top.loaders, 2);
+        Assert.assertEquals(top.loadersDelta, 1);
+        Assert.assertEquals(top.classesDelta, 40);
+        Assert.assertEquals(top.chunkBytesDelta, 40960);
+        Assert.assertEquals(diff.get(3).chunkBytesDelta, 0);
+    }
+
+    @Test
+    public void live() {
+        final List<Metaspace.Loader> loaders = Metaspace.classLoaders();
+        Assert.assertNotNull(loaders);
+        Assert.assertFalse(loaders.isEmpty());
+        final Metaspace.Usage usage = Metaspace.usage();
+        Assert.assertNotNull(usage);
+        Assert.assertTrue(usage.total.used > 0);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsExporterTest {
+    private MetricsExporter exporter;
+
+    @Before
+    public void before() throws IOException {
+        exporter = MetricsExporter.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                Duration.ofMinutes(1));
+    }
+
+    @After
+    public void after() {
+        exporter.close();
+    }
+
+    @Test
+    public void metrics() throws IOException {
+        final String s = get("/metrics", 200);
+        Assert.assertTrue(s.contains("\njvm_memory_used_bytes{area=\"heap\"} "));
+        Assert.assertTrue(s.contains("\njvm_threads_state{state=\"RUNNABLE\"} "));
+        Assert.assertTrue(s.contains("# TYPE jvm_gc_collections counter\n"));
+        // Surefire runs tests with NMT enabled.
+        Assert.assertTrue(s.contains("\njvm_nmt_total_committed_bytes "));
+        Assert.assertTrue(s.endsWith("\n# EOF\n"));
+        // Served from the cached snapshot.
+        Assert.assertEquals(get("/metrics", 200), s);
+    }
+
+    @Test
+    public void loopbackByDefault() throws IOException {
+        try (MetricsExporter e = MetricsExporter.start(0)) {
+            Assert.assertTrue(e.getAddress().getAddress().isLoopbackAddress());
+        }
+    }
+
+    @Test
+    public void threads() throws IOException {
+        Assert.assertTrue(get("/threads", 200).contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void classHistogram() throws IOException {
+        Assert.assertTrue(get("/class-histogram", 200).contains("java.lang.String"));
+    }
+
+    @Test
+    public void notFound() throws IOException {
+        get("/metrics/nope", 404);
+    }
+
+    private String get(final String path, final int status) throws IOException {
+        final URL url = new URL("http", exporter.getAddress().getHostString(), exporter.getAddress().getPort(), path);
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            Assert.assertEquals(conn.getResponseCode(), status);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = status == 200 ? conn.getInputStream() : conn.getErrorStream()) {
+                final byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
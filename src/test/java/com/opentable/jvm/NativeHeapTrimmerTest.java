@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.time.Duration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NativeHeapTrimmerTest {
+    @Test
+    public void due() {
+        Assert.assertTrue(NativeHeapTrimmer.due(false, 0, 5, 10));
+        Assert.assertFalse(NativeHeapTrimmer.due(true, 0, 5, 10));
+        Assert.assertTrue(NativeHeapTrimmer.due(true, 0, 10, 10));
+    }
+
+    @Test
+    public void belowThreshold() {
+        final NativeHeapTrimmer trimmer = new NativeHeapTrimmer(Long.MAX_VALUE, Duration.ZERO);
+        Assert.assertNull(trimmer.maybeTrim());
+    }
+
+    @Test
+    public void trim() {
+        final NativeHeapTrimmer trimmer = new NativeHeapTrimmer(Long.MIN_VALUE, Duration.ofHours(1));
+        if (!trimmer.isSupported()) {
+            return;
+        }
+        final NativeHeapTrimmer.Result result = trimmer.maybeTrim();
+        if (trimmer.isSupported()) {
+            Assert.assertNotNull(result);
+            Assert.assertNotNull(result.duration);
+            // Rate-limited.
+            Assert.assertNull(trimmer.maybeTrim());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and formatting of real {@code VM.native_memory summary} output, as captured from each JDK.
+ * @see Benchmarks
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NmtBenchmark {
+    @Param({"11", "17", "21"})
+    public String jdk;
+
+    private String raw;
+    private String totalLine;
+    private Nmt nmt;
+
+    @Setup
+    public void setup() throws IOException {
+        raw = resource("nmt-jdk" + jdk + ".txt");
+        for (final String line : raw.split("\n")) {
+            if (line.startsWith("Total: ")) {
+                totalLine = line;
+            }
+        }
+        nmt = Nmt.parse(raw);
+    }
+
+    @Benchmark
+    public Nmt parse() {
+        return Nmt.parse(raw);
+    }
+
+    @Benchmark
+    public Nmt.Usage parseUsage() {
+        return Nmt.parseUsage(totalLine);
+    }
+
+    @Benchmark
+    public String format() {
+        return nmt.toString();
+    }
+
+    static String resource(final String name) throws IOException {
+        try (InputStream in = NmtBenchmark.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("no such resource: " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
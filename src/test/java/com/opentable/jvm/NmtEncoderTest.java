@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NmtEncoderTest {
+    private static Nmt sample() {
+        final Map<String, Nmt.Usage> categories = new LinkedHashMap<>();
+        categories.put("Java Heap", new Nmt.Usage(4194304 * Nmt.K, 262144 * Nmt.K));
+        categories.put("Class", new Nmt.Usage(1066181 * Nmt.K, 18885 * Nmt.K));
+        categories.put("Odd \"name\"", new Nmt.Usage(20, 20));
+        return new Nmt(new Nmt.Usage(5710704 * Nmt.K, 471520 * Nmt.K), categories);
+    }
+
+    @Test
+    public void table() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        NmtEncoder.table(sample(), sb);
+        Assert.assertEquals(sb.toString(),
+                "      Name  Reserved   Committed\n" +
+                "     Total  5.45 GiB  460.47 MiB\n" +
+                " Java Heap  4.00 GiB  256.00 MiB\n" +
+                "     Class  1.02 GiB   18.44 MiB\n" +
+                "Odd \"name\"      20 B        20 B\n");
+        Assert.assertEquals(sample().toString(), sb.toString());
+    }
+
+    @Test
+    public void json() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        NmtEncoder.json(sample(), sb);
+        Assert.assertEquals(sb.toString(),
+                "{\"total\":{\"reserved\":5847760896,\"committed\":482836480},\"categories\":{" +
+                "\"Java Heap\":{\"reserved\":4294967296,\"committed\":268435456}," +
+                "\"Class\":{\"reserved\":1091769344,\"committed\":19338240}," +
+                "\"Odd \\\"name\\\"\":{\"reserved\":20,\"committed\":20}}}");
+    }
+
+    @Test
+    public void openMetrics() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        NmtEncoder.openMetrics(sample(), sb);
+        final String s = sb.toString();
+        Assert.assertTrue(s.contains("# TYPE jvm_nmt_reserved_bytes gauge\n"));
+        Assert.assertTrue(s.contains("\njvm_nmt_total_committed_bytes 482836480\n"));
+        Assert.assertTrue(s.contains("\njvm_nmt_reserved_bytes{category=\"Java Heap\"} 4294967296\n"));
+        Assert.assertTrue(s.contains("\njvm_nmt_committed_bytes{category=\"Odd \\\"name\\\"\"} 20\n"));
+        Assert.assertFalse(s.contains("# EOF"));
+    }
+
+    @Test
+    public void escape() throws IOException {
+        final String s = "a\\b\"c\nd\re\tf\u0001g";
+        final StringBuilder json = new StringBuilder();
+        NmtEncoder.escapeJson(json, s);
+        Assert.assertEquals(json.toString(), "a\\\\b\\\"c\\nd\\re\\tf\\u0001g");
+        final StringBuilder label = new StringBuilder();
+        NmtEncoder.escapeLabel(label, s);
+        Assert.assertEquals(label.toString(), "a\\\\b\\\"c\\nd\re\tf\u0001g");
+    }
+
+    @Test
+    public void binary() {
+        final Nmt nmt = sample();
+        final ByteBuffer buf = ByteBuffer.allocate(NmtEncoder.binarySize(nmt));
+        NmtEncoder.binary(nmt, buf);
+        Assert.assertFalse(buf.hasRemaining());
+        buf.flip();
+        final Nmt decoded = NmtEncoder.decodeBinary(buf);
+        Assert.assertEquals(decoded.toString(), nmt.toString());
+        Assert.assertEquals(decoded.categories.keySet(), nmt.categories.keySet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binaryTruncated() {
+        final Nmt nmt = sample();
+        final ByteBuffer buf = ByteBuffer.allocate(NmtEncoder.binarySize(nmt));
+        NmtEncoder.binary(nmt, buf);
+        buf.flip();
+        buf.limit(buf.limit() - 1);
+        NmtEncoder.decodeBinary(buf);
+    }
+
+    @Test
+    public void byteFormat() {
+        Assert.assertEquals(ByteFormat.length(0), 3);
+        Assert.assertEquals(Memory.formatBytes(1023), "1023 B");
+        Assert.assertEquals(Memory.formatBytes(1535), "1.50 KiB");
+        Assert.assertEquals(Memory.formatBytes(Long.MAX_VALUE), "8.00 EiB");
+        Assert.assertEquals(ByteFormat.length(Long.MAX_VALUE), Memory.formatBytes(Long.MAX_VALUE).length());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NmtMXBeanTest {
+    /**
+     * Surefire runs tests with NMT enabled.
+     */
+    @Test
+    public void register() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(NmtMXBean.OBJECT_NAME);
+        final Memory.NmtCloseable closeable = Memory.registerNmtMXBean(Duration.ofMinutes(1));
+        Assert.assertNotNull(closeable);
+        try {
+            Assert.assertTrue((Long) server.getAttribute(name, "TotalCommitted") > 0);
+            final CompositeData total = (CompositeData) server.getAttribute(name, "Total");
+            Assert.assertEquals(total.get("committed"), server.getAttribute(name, "TotalCommitted"));
+            final TabularData categories = (TabularData) server.getAttribute(name, "Categories");
+            Assert.assertFalse(categories.isEmpty());
+
+            final NmtMXBean proxy = JMX.newMXBeanProxy(server, name, NmtMXBean.class);
+            final NmtMXBean.Usage heap = proxy.category("Java Heap");
+            Assert.assertNotNull(heap);
+            Assert.assertTrue(heap.getReserved() >= heap.getCommitted());
+            Assert.assertEquals(proxy.getCategories().keySet().size(), categories.size());
+            // Refreshed only once within the interval.
+            final long refreshed = proxy.getLastRefreshTime();
+            proxy.getTotal();
+            Assert.assertEquals(proxy.getLastRefreshTime(), refreshed);
+
+            // Only one can be registered.
+            Assert.assertNull(Memory.registerNmtMXBean(Duration.ofMinutes(1)));
+        } finally {
+            closeable.close();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
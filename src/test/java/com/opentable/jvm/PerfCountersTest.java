@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PerfCountersTest {
+    @Test
+    public void parse() {
+        final PerfCounters c = PerfCounters.parse(build());
+        Assert.assertEquals(c.get(PerfCounters.SAFEPOINTS), 42);
+        Assert.assertEquals(c.get(PerfCounters.HRT_FREQUENCY), 1000);
+        Assert.assertEquals(c.ticksToNanos(3), 3000000);
+        Assert.assertEquals(c.getString("sun.gc.collector.0.name"), "Serial");
+        Assert.assertEquals(c.get("sun.gc.collector.0.name"), -1);
+        Assert.assertEquals(c.get("no.such.counter"), -1);
+        Assert.assertNull(c.counter("no.such.counter"));
+        Assert.assertEquals(c.names().size(), 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseBadMagic() {
+        final ByteBuffer buf = build();
+        buf.put(0, (byte) 0);
+        PerfCounters.parse(buf);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseTooShort() {
+        PerfCounters.parse(ByteBuffer.allocate(8));
+    }
+
+    @Test
+    public void open() {
+        final PerfCounters c = PerfCounters.open();
+        Assert.assertNotNull(c);
+        Assert.assertTrue(c.get(PerfCounters.SAFEPOINTS) >= 0);
+        Assert.assertTrue(c.get(PerfCounters.LOADED_CLASSES) + c.get(PerfCounters.SHARED_LOADED_CLASSES) > 0);
+        Assert.assertTrue(c.get(PerfCounters.HRT_FREQUENCY) > 0);
+    }
+
+    /**
+     * Lays out a little-endian performance data file, as HotSpot would on x86.
+     */
+    private static ByteBuffer build() {
+        final ByteBuffer buf = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        buf.order(ByteOrder.BIG_ENDIAN).putInt(0xcafec0c0).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 1); // little-endian
+        buf.put((byte) 2); // major
+        buf.put((byte) 0); // minor
+        buf.put((byte) 1); // accessible
+        buf.putInt(0); // used
+        buf.putInt(0); // overflow
+        buf.putLong(0); // mod_time_stamp
+        buf.putInt(32); // entry_offset
+        buf.putInt(3); // num_entries
+        putLong(buf, PerfCounters.SAFEPOINTS, 42);
+        putLong(buf, PerfCounters.HRT_FREQUENCY, 1000);
+        final byte[] name = "sun.gc.collector.0.name".getBytes(StandardCharsets.US_ASCII);
+        final byte[] value = "Serial".getBytes(StandardCharsets.US_ASCII);
+        final int start = buf.position();
+        final int nameOffset = 20;
+        final int dataOffset = nameOffset + name.length + 1;
+        final int vectorLength = 16;
+        buf.putInt(dataOffset + vectorLength).putInt(nameOffset).putInt(vectorLength);
+        buf.put((byte) 'B').put((byte) 0).put((byte) 5).put((byte) 1).putInt(dataOffset);
+        buf.put(name).put((byte) 0).put(value);
+        buf.position(start + dataOffset + vectorLength);
+        return buf;
+    }
+
+    private static void putLong(final ByteBuffer buf, final String counter, final long value) {
+        final byte[] name = counter.getBytes(StandardCharsets.US_ASCII);
+        final int start = buf.position();
+        final int nameOffset = 20;
+        final int dataOffset = (nameOffset + name.length + 1 + 7) & ~7;
+        buf.putInt(dataOffset + 8).putInt(nameOffset).putInt(0);
+        buf.put((byte) 'J').put((byte) 0).put((byte) 4).put((byte) 2).putInt(dataOffset);
+        buf.put(name).put((byte) 0);
+        buf.putLong(start + dataOffset, value);
+        buf.position(start + dataOffset + 8);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProcessMemoryTest {
+    private static final String STATUS = "Name:\tjava\n" +
+            "Umask:\t0022\n" +
+            "State:\tS (sleeping)\n" +
+            "VmPeak:\t 8123456 kB\n" +
+            "VmSize:\t 8023456 kB\n" +
+            "VmHWM:\t  612340 kB\n" +
+            "VmRSS:\t  600000 kB\n" +
+            "RssAnon:\t  500000 kB\n" +
+            "RssFile:\t   99000 kB\n" +
+            "RssShmem:\t    1000 kB\n" +
+            "VmData:\t 1234567 kB\n" +
+            "VmSwap:\t    2000 kB\n" +
+            "Threads:\t57\n";
+
+    private static final String SMAPS_ROLLUP = "557279048000-7ffe04d63000 ---p 00000000 00:00 0" +
+            "                          [rollup]\n" +
+            "Rss:              600000 kB\n" +
+            "Pss:              580000 kB\n" +
+            "Pss_Anon:         500000 kB\n" +
+            "Shared_Clean:      20000 kB\n" +
+            "Private_Dirty:    510000 kB\n" +
+            "Anonymous:        500000 kB\n" +
+            "AnonHugePages:    204800 kB\n" +
+            "Swap:               2000 kB\n";
+
+    private static final String SMAPS = "00400000-00401000 r-xp 00000000 fd:01 1234    /usr/bin/java\n" +
+            "Size:                  4 kB\n" +
+            "Rss:                   4 kB\n" +
+            "Pss:                   2 kB\n" +
+            "Pss_Anon:              0 kB\n" +
+            "Private_Dirty:         0 kB\n" +
+            "Anonymous:             0 kB\n" +
+            "AnonHugePages:         0 kB\n" +
+            "VmFlags: rd ex mr mw me dw\n" +
+            "7f0000000000-7f0004000000 rw-p 00000000 00:00 0\n" +
+            "Size:              65536 kB\n" +
+            "Rss:               10000 kB\n" +
+            "Pss:               10000 kB\n" +
+            "Pss_Anon:          10000 kB\n" +
+            "Private_Dirty:     10000 kB\n" +
+            "Anonymous:         10000 kB\n" +
+            "AnonHugePages:      2048 kB\n" +
+            "VmFlags: rd wr mr mw me nr\n";
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parseRollup() {
+        final ProcessMemory m = ProcessMemory.parse(STATUS, SMAPS_ROLLUP);
+        Assert.assertEquals(m.rss, 600000 * Nmt.K);
+        Assert.assertEquals(m.rssPeak, 612340 * Nmt.K);
+        Assert.assertEquals(m.rssAnon, 500000 * Nmt.K);
+        Assert.assertEquals(m.rssFile, 99000 * Nmt.K);
+        Assert.assertEquals(m.rssShmem, 1000 * Nmt.K);
+        Assert.assertEquals(m.swap, 2000 * Nmt.K);
+        Assert.assertEquals(m.pss, 580000 * Nmt.K);
+        Assert.assertEquals(m.anonymous, 500000 * Nmt.K);
+        Assert.assertEquals(m.anonHugePages, 204800 * Nmt.K);
+        Assert.assertEquals(m.privateDirty, 510000 * Nmt.K);
+    }
+
+    @Test
+    public void parseFullSmaps() {
+        final ProcessMemory m = ProcessMemory.parse(STATUS, SMAPS);
+        Assert.assertEquals(m.pss, 10002 * Nmt.K);
+        Assert.assertEquals(m.anonymous, 10000 * Nmt.K);
+        Assert.assertEquals(m.anonHugePages, 2048 * Nmt.K);
+    }
+
+    @Test
+    public void parseNoSmaps() {
+        final ProcessMemory m = ProcessMemory.parse("Name:\tjava\nVmRSS:\t  100 kB\n", null);
+        Assert.assertEquals(m.rss, 100 * Nmt.K);
+        Assert.assertEquals(m.rssAnon, -1);
+        Assert.assertEquals(m.pss, -1);
+    }
+
+    @Test
+    public void untrackedNative() {
+        final Nmt nmt = Nmt.parse("\n" +
+                "Native Memory Tracking:\n" +
+                "\n" +
+                "Total: reserved=5710704KB, committed=471520KB\n" +
+                "-                 Java Heap (reserved=4194304KB, committed=262144KB)\n" +
+                "                            (mmap: reserved=4194304KB, committed=262144KB) \n");
+        final ProcessMemory m = ProcessMemory.parse(STATUS, SMAPS_ROLLUP);
+        Assert.assertEquals(m.untrackedNative(nmt), (500000 + 2000 - 471520) * Nmt.K);
+    }
+
+    @Test
+    public void getFixtureDir() throws IOException {
+        final Path dir = tmp.getRoot().toPath();
+        Files.write(dir.resolve("status"), STATUS.getBytes(StandardCharsets.US_ASCII));
+        Files.write(dir.resolve("smaps_rollup"), SMAPS_ROLLUP.getBytes(StandardCharsets.US_ASCII));
+        final ProcessMemory m = ProcessMemory.get(dir, false);
+        Assert.assertNotNull(m);
+        Assert.assertEquals(m.pss, 580000 * Nmt.K);
+        // No full smaps in the fixture; status is still read.
+        final ProcessMemory full = ProcessMemory.get(dir, true);
+        Assert.assertNotNull(full);
+        Assert.assertEquals(full.rss, 600000 * Nmt.K);
+        Assert.assertEquals(full.pss, -1);
+    }
+
+    @Test
+    public void getMissing() {
+        Assert.assertNull(ProcessMemory.get(tmp.getRoot().toPath(), false));
+    }
+
+    @Test
+    public void get() {
+        Assume.assumeTrue(Files.exists(Paths.get("/proc/self/status")));
+        final ProcessMemory m = ProcessMemory.get();
+        Assert.assertNotNull(m);
+        Assert.assertTrue(m.rss > 0);
+    }
+}
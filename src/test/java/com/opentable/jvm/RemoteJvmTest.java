@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RemoteJvmTest {
+    private static final String READY = "ready";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<Process> children = new ArrayList<>();
+
+    @Before
+    public void before() throws IOException {
+        children.add(launch("-XX:NativeMemoryTracking=summary"));
+        children.add(launch());
+    }
+
+    @After
+    public void after() {
+        children.forEach(Process::destroyForcibly);
+    }
+
+    @Test
+    public void remote() throws IOException {
+        try (RemoteJvm jvm = RemoteJvm.attach(pid(0))) {
+            Assert.assertTrue(ThreadInfo.format(jvm).contains("child-main"));
+            final Nmt nmt = Memory.getNmt(jvm);
+            Assert.assertNotNull(nmt);
+            Assert.assertTrue(nmt.total.committed > 0);
+            Assert.assertTrue(Diagnostics.classHistogram(jvm).contains("java.lang.String"));
+
+            final Path dump = tmp.getRoot().toPath().resolve("remote.hprof");
+            Memory.dumpHeap(jvm, dump);
+            Assert.assertTrue(Files.size(dump) > 0);
+        }
+        try (RemoteJvm jvm = RemoteJvm.attach(pid(1))) {
+            // NMT disabled.
+            Assert.assertNull(Memory.getNmt(jvm));
+        }
+    }
+
+    @Test
+    public void pool() throws Exception {
+        try (RemoteJvmPool pool = new RemoteJvmPool(2, Duration.ofMinutes(1))) {
+            final List<String> pids = Arrays.asList(pid(0), pid(1), "0");
+            final Map<String, String> threads = pool.collect(pids, ThreadInfo::format);
+            Assert.assertEquals(new ArrayList<>(threads.keySet()), Arrays.asList(pid(0), pid(1)));
+
+            final RemoteJvm jvm = pool.get(pid(0));
+            Assert.assertSame(pool.get(pid(0)), jvm);
+            Assert.assertEquals(pool.collect(Collections.singletonList(pid(0)), Memory::getNmt).size(), 1);
+            Assert.assertSame(pool.get(pid(0)), jvm);
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        try (RemoteJvmPool pool = new RemoteJvmPool(1, Duration.ofMillis(1))) {
+            final Map<String, String> threads = pool.collect(Collections.singletonList(pid(0)), jvm -> {
+                try {
+                    Thread.sleep(Duration.ofMinutes(1).toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "never";
+            });
+            Assert.assertTrue(threads.isEmpty());
+        }
+    }
+
+    @Test
+    public void timeoutPerTarget() throws Exception {
+        // One thread for two JVMs: the second waits its turn, which must not count against its timeout.
+        try (RemoteJvmPool pool = new RemoteJvmPool(1, Duration.ofSeconds(3))) {
+            final List<String> pids = Arrays.asList(pid(0), pid(1));
+            for (final String pid : pids) {
+                pool.get(pid);
+            }
+            final Map<String, String> collected = pool.collect(pids, jvm -> {
+                try {
+                    Thread.sleep(Duration.ofSeconds(2).toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return jvm.getPid();
+            });
+            Assert.assertEquals(new ArrayList<>(collected.keySet()), pids);
+        }
+    }
+
+    private String pid(final int i) {
+        return Long.toString(children.get(i).pid());
+    }
+
+    private static Process launch(final String... jvmArgs) throws IOException {
+        final List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(Arrays.asList(jvmArgs));
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Child.class.getName());
+        final Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        final BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (READY.equals(line)) {
+                return p;
+            }
+        }
+        throw new IOException("child JVM exited before becoming ready");
+    }
+
+    /**
+     * Target JVM: waits to be attached to, until killed.
+     */
+    public static final class Child {
+        private Child() {}
+
+        public static void main(final String[] args) throws InterruptedException {
+            Thread.currentThread().setName("child-main");
+            System.out.println(READY);
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
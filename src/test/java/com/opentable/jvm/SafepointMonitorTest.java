@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class SafepointMonitorTest {
+    @Test
+    public void percentile() {
+        final long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        Assert.assertEquals(SafepointMonitor.percentile(sorted, 0.5), 50);
+        Assert.assertEquals(SafepointMonitor.percentile(sorted, 0.99), 99);
+        Assert.assertEquals(SafepointMonitor.percentile(sorted, 1), 100);
+        Assert.assertEquals(SafepointMonitor.percentile(new long[] {7}, 0.9), 7);
+    }
+
+    @Test
+    public void record() {
+        try (SafepointMonitor monitor = new SafepointMonitor(false, 4, SafepointMonitor.DEFAULT_RETENTION)) {
+            for (int i = 1; i <= 6; i++) {
+                monitor.record(i * 1000, 100, "PrintThreads", "nmt-poller");
+            }
+            monitor.record(50, 10, null, null);
+            final SafepointMonitor.Report report = monitor.sample();
+            Assert.assertFalse(report.recording);
+            // Window holds the last 4: 4000, 5000, 6000, 50.
+            Assert.assertEquals(report.pauses, 4);
+            Assert.assertEquals(report.max, Duration.ofNanos(6000));
+            Assert.assertEquals(report.p50, Duration.ofNanos(4000));
+            Assert.assertEquals(report.operations.size(), 2);
+            final SafepointMonitor.Operation op = report.operations.get(0);
+            Assert.assertEquals(op.name, "PrintThreads");
+            Assert.assertEquals(op.caller, "nmt-poller");
+            Assert.assertEquals(op.getCount(), 6);
+            Assert.assertEquals(op.getTotalTime(), Duration.ofNanos(21000));
+            Assert.assertEquals(op.getSyncTime(), Duration.ofNanos(600));
+            Assert.assertEquals(report.operations.get(1).name, "(none)");
+        }
+    }
+
+    @Test
+    public void live() {
+        try (SafepointMonitor monitor = new SafepointMonitor()) {
+            final SafepointMonitor.Report before = monitor.sample();
+            Assert.assertNotNull(ThreadInfo.format());
+            final SafepointMonitor.Report after = monitor.sample();
+            Assert.assertTrue(after.count > before.count);
+            Assert.assertTrue(after.time.compareTo(before.time) >= 0);
+            Assert.assertTrue(after.recording);
+            Assert.assertTrue(after.pauses > 0);
+            final String self = Thread.currentThread().getName();
+            Assert.assertTrue(after.toString(), after.operations.stream()
+                    .anyMatch(op -> "PrintThreads".equals(op.name) && self.equals(op.caller)));
+        }
+    }
+
+    @Test
+    public void nonSafepointOperations() {
+        Assume.assumeTrue(FlightRecorder.isAvailable());
+        // Far above any real safepoint id, which the recording may pick up too.
+        final long id = Long.MAX_VALUE / 2;
+        try (SafepointMonitor monitor = new SafepointMonitor(false, 16, SafepointMonitor.DEFAULT_RETENTION);
+                Recording r = new Recording()) {
+            for (final Class<? extends Event> type : Arrays.asList(Begin.class, End.class, VmOperation.class)) {
+                r.enable(type).withoutThreshold();
+            }
+            r.start();
+            // Doesn't stop the world, as is common under ZGC: safepoint id 0, and no begin or end.
+            new VmOperation(0, false, "ZMarkEnd").commit();
+            // Lost its end.
+            new Begin(id).commit();
+            new Begin(id + 1).commit();
+            new VmOperation(id + 1, true, "Newer").commit();
+            new End(id + 1).commit();
+            // Still in progress.
+            new Begin(id + 2).commit();
+            monitor.readRecording(r);
+            SafepointMonitor.Report report = monitor.sample();
+            Assert.assertEquals(count(report, "ZMarkEnd"), 0);
+            Assert.assertEquals(count(report, "Newer"), 1);
+            Assert.assertEquals(count(report, "Latest"), 0);
+
+            new VmOperation(id + 2, true, "Latest").commit();
+            new End(id + 2).commit();
+            monitor.readRecording(r);
+            report = monitor.sample();
+            Assert.assertEquals(count(report, "ZMarkEnd"), 0);
+            Assert.assertEquals(count(report, "Newer"), 1);
+            Assert.assertEquals(count(report, "Latest"), 1);
+        }
+    }
+
+    private static long count(final SafepointMonitor.Report report, final String operation) {
+        return report.operations.stream()
+                .filter(op -> operation.equals(op.name))
+                .mapToLong(SafepointMonitor.Operation::getCount)
+                .sum();
+    }
+
+    // Stand-ins for the JVM's own events, with the fields SafepointMonitor reads.
+
+    @Name("jdk.SafepointBegin")
+    static class Begin extends Event {
+        long safepointId;
+
+        Begin(final long safepointId) {
+            this.safepointId = safepointId;
+        }
+    }
+
+    @Name("jdk.SafepointEnd")
+    static class End extends Event {
+        long safepointId;
+
+        End(final long safepointId) {
+            this.safepointId = safepointId;
+        }
+    }
+
+    @Name("jdk.ExecuteVMOperation")
+    static class VmOperation extends Event {
+        long safepointId;
+        boolean safepoint;
+        String operation;
+        Thread caller = Thread.currentThread();
+
+        VmOperation(final long safepointId, final boolean safepoint, final String operation) {
+            this.safepointId = safepointId;
+            this.safepoint = safepoint;
+            this.operation = operation;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016 OpenTable, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.opentable.jvm;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StuckThreadDetectorTest {
+    private static volatile boolean spin;
+    private static final Object LOCK = new Object();
+
+    @Test
+    public void detect() throws InterruptedException {
+        final StuckThreadDetector detector = new StuckThreadDetector(Duration.ofMillis(100));
+        final CountDownLatch started = new CountDownLatch(3);
+        final Thread spinner = new Thread(() -> {
+            started.countDown();
+            spin();
+        }, "test-spinner");
+        final Thread blocked = new Thread(() -> {
+            started.countDown();
+            synchronized (LOCK) {
+                Thread.yield();
+            }
+        }, "test-blocked");
+        final Thread sleeper = new Thread(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(Duration.ofMinutes(1).toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "test-sleeper");
+
+        spin = true;
+        synchronized (LOCK) {
+            spinner.start();
+            blocked.start();
+            sleeper.start();
+            try {
+                started.await();
+                while (blocked.getState() != Thread.State.BLOCKED) {
+                    Thread.sleep(10);
+                }
+                Assert.assertTrue(detector.sample().stream().noneMatch(s -> s.threadName.startsWith("test-")));
+                Thread.sleep(200);
+                detector.sample();
+                Thread.sleep(200);
+                final List<StuckThreadDetector.StuckThread> stuck = detector.sample();
+
+                final StuckThreadDetector.StuckThread s = find(stuck, "test-spinner");
+                Assert.assertEquals(s.state, Thread.State.RUNNABLE);
+                Assert.assertTrue(s.stuckFor.toMillis() >= 400);
+                Assert.assertEquals(s.frames.get(0).getMethodName(), "spin");
+                Assert.assertTrue(s.toString().contains("\"test-spinner\""));
+
+                Assert.assertEquals(find(stuck, "test-blocked").state, Thread.State.BLOCKED);
+                Assert.assertNull(find(stuck, "test-sleeper"));
+            } finally {
+                spin = false;
+                sleeper.interrupt();
+            }
+        }
+        spinner.join();
+        blocked.join();
+        sleeper.join();
+        Assert.assertTrue(detector.sample().stream().noneMatch(s -> s.threadName.startsWith("test-")));
+    }
+
+    private static StuckThreadDetector.StuckThread find(final List<StuckThreadDetector.StuckThread> stuck,
+            final String name) {
+        return stuck.stream().filter(s -> s.threadName.equals(name)).findFirst().orElse(null);
+    }
+
+    private static void spin() {
+        long n = 0;
+        while (spin) {
+            n++;
+        }
+        Assert.assertTrue(n > 0);
+    }
+}